@@ -0,0 +1,83 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Locates the real data files used as benchmark inputs.
+ */
+final class BenchmarkFiles
+{
+    /** The root of the extracted app data, set by the build script. */
+    static final String ASSETS_DIR = System.getProperty( "assets.dir",
+            "../assets/mupen64plus_data" );
+    
+    private BenchmarkFiles()
+    {
+    }
+    
+    /**
+     * Returns the path of a data file, given its short name.
+     * 
+     * @param name "mupen64plus.ini", "mupen64plus.cht", "InputAutoCfg.ini" or "pad.ini".
+     * @return The full path of the file.
+     */
+    static String path( String name )
+    {
+        if( name.equals( "pad.ini" ) )
+            return ASSETS_DIR + "/skins/gamepads/Mupen64Plus-AE-Analog/pad.ini";
+        return ASSETS_DIR + "/data/" + name;
+    }
+    
+    /**
+     * Copies a data file to a temporary file, so benchmarks can overwrite it.
+     * 
+     * @param name The short name of the data file.
+     * @return The copy, which is deleted when the JVM exits.
+     */
+    static File copyToTemp( String name ) throws IOException
+    {
+        File copy = File.createTempFile( "bench", "-" + name );
+        copy.deleteOnExit();
+        
+        InputStream in = new FileInputStream( path( name ) );
+        OutputStream out = new FileOutputStream( copy );
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int n;
+            while( ( n = in.read( buffer ) ) > 0 )
+                out.write( buffer, 0, n );
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        return copy;
+    }
+}
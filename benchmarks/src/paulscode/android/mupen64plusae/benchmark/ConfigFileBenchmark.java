@@ -0,0 +1,139 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+
+/**
+ * Benchmarks loading, querying and saving the app's config files, in both the full and the
+ * compact (comment-free) layout.
+ * <p>
+ * Lookups cycle through up to 64 sections spread evenly over the file, so the results aren't
+ * dominated by a single hot entry. The match regexes have the same shape as the CRC lookups in
+ * PlayMenuActivity: the title with every non-alphanumeric character replaced by '.'.
+ */
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class ConfigFileBenchmark
+{
+    private static final int MAX_SAMPLES = 64;
+    
+    @Param( { "mupen64plus.ini", "mupen64plus.cht", "InputAutoCfg.ini", "pad.ini" } )
+    public String file;
+    
+    @Param( { "full", "compact" } )
+    public String layout;
+    
+    private String mFilename;
+    private boolean mKeepComments;
+    private ConfigFile mConfig;
+    private String[] mTitles;
+    private String[] mParameters;
+    private String[] mRegexes;
+    private int mNext;
+    
+    private ConfigFile mSaveConfig;
+    private boolean mToggle;
+    
+    @Setup( Level.Trial )
+    public void setup() throws IOException
+    {
+        mFilename = BenchmarkFiles.path( file );
+        mKeepComments = layout.equals( "full" );
+        mConfig = new ConfigFile( mFilename, mKeepComments );
+        
+        // Sample sections that have at least one parameter
+        List<String> titles = new ArrayList<String>();
+        List<String> parameters = new ArrayList<String>();
+        int step = Math.max( 1, mConfig.keySet().size() / MAX_SAMPLES );
+        int i = 0;
+        for( String title : mConfig.keySet() )
+        {
+            ConfigSection section = mConfig.get( title );
+            if( i++ % step == 0 && !section.keySet().isEmpty() )
+            {
+                titles.add( title );
+                parameters.add( section.keySet().iterator().next() );
+            }
+        }
+        mTitles = titles.toArray( new String[titles.size()] );
+        mParameters = parameters.toArray( new String[parameters.size()] );
+        mRegexes = new String[mTitles.length];
+        for( i = 0; i < mTitles.length; i++ )
+            mRegexes[i] = "^" + mTitles[i].replaceAll( "[^A-Za-z0-9]", "." ) + "$";
+        
+        File copy = BenchmarkFiles.copyToTemp( file );
+        mSaveConfig = new ConfigFile( copy.getPath(), mKeepComments );
+    }
+    
+    @Benchmark
+    public ConfigFile load()
+    {
+        return new ConfigFile( mFilename, mKeepComments );
+    }
+    
+    @Benchmark
+    public String get()
+    {
+        int i = mNext++ % mTitles.length;
+        return mConfig.get( mTitles[i], mParameters[i] );
+    }
+    
+    @Benchmark
+    public ConfigSection match()
+    {
+        int i = mNext++ % mRegexes.length;
+        return mConfig.match( mRegexes[i] );
+    }
+    
+    @Benchmark
+    public boolean save()
+    {
+        // Change one value so there is something to save
+        mToggle = !mToggle;
+        mSaveConfig.put( mTitles[0], mParameters[0], mToggle ? "1" : "0" );
+        return mSaveConfig.save();
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.util.StreamUtil;
+
+/**
+ * Benchmarks the bulk copies done by the app, before and after moving them onto StreamUtil.
+ * <p>
+ * Each workload is run with the "legacy" copy loop (a 1024-byte array per copy, as the app used to
+ * do) and with StreamUtil:
+ * <ul>
+ * <li>assets: every file under the assets directory, read through an InputStream as
+ * AssetExtractor does with AssetManager.open.</li>
+ * <li>saves: a generated save directory (EEPROM, SRAM, flash, mempak and ten save states for each
+ * of ten games), copied file by file as MenuActivity.actionMigrateSlotSaves does.</li>
+ * <li>rom: a 16 MB ROM inflated from a zip file, as ExtractedRomCache.extract does.</li>
+ * </ul>
+ * The "mbPerSecond" secondary result is the copy throughput in MB/s; the files live in the
+ * system temp directory, so put that on the storage you want to measure.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class CopyBenchmark
+{
+    @Param( { "assets", "saves", "rom" } )
+    public String workload;
+    
+    @Param( { "legacy", "streamutil" } )
+    public String method;
+    
+    private File mWorkDir;
+    private File mOutputDir;
+    private final List<File> mSources = new ArrayList<File>();
+    private final List<String> mRelativePaths = new ArrayList<String>();
+    private File mRomZip;
+    
+    /**
+     * Counts the bytes copied, reported by JMH as a rate.
+     */
+    @AuxCounters( AuxCounters.Type.OPERATIONS )
+    @State( Scope.Thread )
+    public static class Throughput
+    {
+        public double mbPerSecond;
+        
+        void add( long bytes )
+        {
+            mbPerSecond += bytes / ( 1024.0 * 1024.0 );
+        }
+    }
+    
+    @Setup( Level.Trial )
+    public void setup() throws IOException
+    {
+        mWorkDir = createTempDir( "copybench" );
+        mOutputDir = new File( mWorkDir, "out" );
+        
+        if( workload.equals( "assets" ) )
+        {
+            collect( new File( BenchmarkFiles.ASSETS_DIR ), "" );
+        }
+        else if( workload.equals( "saves" ) )
+        {
+            File saves = new File( mWorkDir, "saves" );
+            saves.mkdirs();
+            Random random = new Random( 64 );
+            for( int game = 0; game < 10; game++ )
+            {
+                String name = "GAME" + game;
+                writeRandom( new File( saves, name + ".eep" ), 2 * 1024, random );
+                writeRandom( new File( saves, name + ".sra" ), 32 * 1024, random );
+                writeRandom( new File( saves, name + ".fla" ), 128 * 1024, random );
+                writeRandom( new File( saves, name + ".mpk" ), 128 * 1024, random );
+                for( int slot = 0; slot < 10; slot++ )
+                    writeRandom( new File( saves, name + ".st" + slot ), 512 * 1024, random );
+            }
+            collect( saves, "" );
+        }
+        else
+        {
+            // Half random, half padding, so it compresses about as well as a real ROM
+            mRomZip = new File( mWorkDir, "rom.zip" );
+            byte[] rom = new byte[16 * 1024 * 1024];
+            byte[] random = new byte[rom.length / 2];
+            new Random( 64 ).nextBytes( random );
+            System.arraycopy( random, 0, rom, 0, random.length );
+            ZipOutputStream zip = new ZipOutputStream( new FileOutputStream( mRomZip ) );
+            try
+            {
+                zip.putNextEntry( new ZipEntry( "rom.z64" ) );
+                zip.write( rom );
+                zip.closeEntry();
+            }
+            finally
+            {
+                zip.close();
+            }
+        }
+    }
+    
+    @TearDown( Level.Trial )
+    public void tearDown()
+    {
+        delete( mWorkDir );
+    }
+    
+    @Benchmark
+    public void copy( Throughput throughput ) throws IOException
+    {
+        mOutputDir.mkdirs();
+        boolean legacy = method.equals( "legacy" );
+        long bytes = 0;
+        
+        if( workload.equals( "assets" ) )
+        {
+            for( int i = 0; i < mSources.size(); i++ )
+            {
+                File dest = new File( mOutputDir, mRelativePaths.get( i ) );
+                dest.getParentFile().mkdirs();
+                InputStream in = new FileInputStream( mSources.get( i ) );
+                if( legacy )
+                    bytes += legacyCopy( in, new FileOutputStream( dest ) );
+                else
+                    bytes += StreamUtil.copy( in, dest );
+            }
+        }
+        else if( workload.equals( "saves" ) )
+        {
+            for( int i = 0; i < mSources.size(); i++ )
+            {
+                File dest = new File( mOutputDir, mRelativePaths.get( i ) );
+                if( legacy )
+                    bytes += legacyCopy( new FileInputStream( mSources.get( i ) ),
+                            new FileOutputStream( dest ) );
+                else
+                    bytes += StreamUtil.copy( mSources.get( i ), dest );
+            }
+        }
+        else
+        {
+            ZipFile zipfile = new ZipFile( mRomZip );
+            try
+            {
+                ZipEntry entry = zipfile.getEntry( "rom.z64" );
+                File dest = new File( mOutputDir, "rom.z64" );
+                if( legacy )
+                    bytes += legacyCopy( new BufferedInputStream( zipfile.getInputStream( entry ) ),
+                            new BufferedOutputStream( new FileOutputStream( dest ) ) );
+                else
+                    bytes += StreamUtil.copy( zipfile.getInputStream( entry ), dest );
+            }
+            finally
+            {
+                zipfile.close();
+            }
+        }
+        
+        throughput.add( bytes );
+    }
+    
+    // The copy loop the app used before StreamUtil
+    private static long legacyCopy( InputStream in, OutputStream out ) throws IOException
+    {
+        long total = 0;
+        byte[] buffer = new byte[1024];
+        int n;
+        while( ( n = in.read( buffer ) ) > 0 )
+        {
+            out.write( buffer, 0, n );
+            total += n;
+        }
+        in.close();
+        out.close();
+        return total;
+    }
+    
+    private void collect( File dir, String prefix )
+    {
+        File[] files = dir.listFiles();
+        if( files == null )
+            return;
+        
+        for( File file : files )
+        {
+            if( file.isDirectory() )
+            {
+                collect( file, prefix + file.getName() + "/" );
+            }
+            else
+            {
+                mSources.add( file );
+                mRelativePaths.add( prefix + file.getName() );
+            }
+        }
+    }
+    
+    private static void writeRandom( File file, int size, Random random ) throws IOException
+    {
+        byte[] data = new byte[size];
+        random.nextBytes( data );
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( data );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private static File createTempDir( String prefix ) throws IOException
+    {
+        File dir = File.createTempFile( prefix, "" );
+        if( !dir.delete() || !dir.mkdir() )
+            throw new IOException( "Unable to create " + dir );
+        return dir;
+    }
+    
+    private static void delete( File file )
+    {
+        File[] children = file.listFiles();
+        if( children != null )
+        {
+            for( File child : children )
+                delete( child );
+        }
+        file.delete();
+    }
+}
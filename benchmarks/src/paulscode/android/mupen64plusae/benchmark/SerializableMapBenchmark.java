@@ -0,0 +1,89 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import paulscode.android.mupen64plusae.input.map.SerializableMap;
+
+/**
+ * Benchmarks the serialized map format used by the input and player maps.
+ * <p>
+ * InputMap and PlayerMap can't be loaded off-device, so their serialized defaults are copied here
+ * (see InputMap.DEFAULT_INPUT_MAP_STRING_*) and parsed through their common base class, which
+ * holds all of the parsing logic.
+ */
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime } )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@State( Scope.Thread )
+public class SerializableMapBenchmark
+{
+    private static final String INPUT_MAP_GENERIC = "0:22,1:21,2:20,3:19,4:108,5:-35,5:-47,6:99,7:96,8:-23,9:-24,10:-29,11:-30,12:103,12:-45,13:102,16:-1,17:-2,18:-3,19:-4";
+    private static final String INPUT_MAP_OUYA = "0:22,1:21,2:20,3:19,4:100,5:-35,6:99,7:96,8:-23,9:-24,10:-29,11:-30,12:103,13:102,16:-1,17:-2,18:-3,19:-4,32:97";
+    private static final String INPUT_MAP_N64_ADAPTER = "0:201,1:203,2:202,3:200,4:197,5:196,6:190,7:189,8:-30,9:-29,10:-23,11:-24,12:195,13:194,16:-1,17:-2,18:-3,19:-4";
+    
+    @Param( { "generic", "ouya", "n64adapter" } )
+    public String inputMap;
+    
+    private String mSerialized;
+    private SerializableMap mMap;
+    
+    @Setup( Level.Trial )
+    public void setup()
+    {
+        if( inputMap.equals( "ouya" ) )
+            mSerialized = INPUT_MAP_OUYA;
+        else if( inputMap.equals( "n64adapter" ) )
+            mSerialized = INPUT_MAP_N64_ADAPTER;
+        else
+            mSerialized = INPUT_MAP_GENERIC;
+        mMap = new SerializableMap( mSerialized );
+    }
+    
+    @Benchmark
+    public String serialize()
+    {
+        return mMap.serialize();
+    }
+    
+    @Benchmark
+    public SerializableMap deserialize()
+    {
+        mMap.deserialize( mSerialized );
+        return mMap;
+    }
+}
@@ -0,0 +1,24 @@
+package android.content.res;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Desktop stand-in for android.content.res.AssetManager. The benchmarks never initialize
+ * AssetSource, so nothing is ever opened through it.
+ */
+public class AssetManager
+{
+    public static final int ACCESS_BUFFER = 3;
+    
+    public InputStream open( String fileName ) throws IOException
+    {
+        throw new FileNotFoundException( fileName );
+    }
+    
+    public InputStream open( String fileName, int accessMode ) throws IOException
+    {
+        throw new FileNotFoundException( fileName );
+    }
+}
@@ -0,0 +1,17 @@
+package android.text;
+
+/**
+ * Desktop stand-in for the parts of android.text.TextUtils used by the benchmarked classes.
+ */
+public class TextUtils
+{
+    public static boolean isEmpty( CharSequence str )
+    {
+        return str == null || str.length() == 0;
+    }
+    
+    public static boolean equals( CharSequence a, CharSequence b )
+    {
+        return a == b || ( a != null && b != null && a.toString().equals( b.toString() ) );
+    }
+}
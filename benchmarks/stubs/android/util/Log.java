@@ -0,0 +1,41 @@
+package android.util;
+
+/**
+ * Desktop stand-in for android.util.Log. Errors and warnings go to stderr; the rest is dropped so
+ * it doesn't skew the measurements.
+ */
+public class Log
+{
+    public static int v( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int d( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int i( String tag, String msg )
+    {
+        return 0;
+    }
+    
+    public static int w( String tag, String msg )
+    {
+        System.err.println( "W/" + tag + ": " + msg );
+        return 0;
+    }
+    
+    public static int w( String tag, String msg, Throwable tr )
+    {
+        System.err.println( "W/" + tag + ": " + msg + ": " + tr );
+        return 0;
+    }
+    
+    public static int e( String tag, String msg )
+    {
+        System.err.println( "E/" + tag + ": " + msg );
+        return 0;
+    }
+}
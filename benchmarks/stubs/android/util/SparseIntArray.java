@@ -0,0 +1,110 @@
+package android.util;
+
+/**
+ * Desktop stand-in for android.util.SparseIntArray, with the same sorted-array implementation so
+ * the benchmarks see realistic costs.
+ */
+public class SparseIntArray
+{
+    private int[] mKeys = new int[10];
+    private int[] mValues = new int[10];
+    private int mSize;
+    
+    public int get( int key )
+    {
+        return get( key, 0 );
+    }
+    
+    public int get( int key, int valueIfKeyNotFound )
+    {
+        int i = binarySearch( key );
+        return i < 0 ? valueIfKeyNotFound : mValues[i];
+    }
+    
+    public void delete( int key )
+    {
+        int i = binarySearch( key );
+        if( i >= 0 )
+            removeAt( i );
+    }
+    
+    public void removeAt( int index )
+    {
+        System.arraycopy( mKeys, index + 1, mKeys, index, mSize - ( index + 1 ) );
+        System.arraycopy( mValues, index + 1, mValues, index, mSize - ( index + 1 ) );
+        mSize--;
+    }
+    
+    public void put( int key, int value )
+    {
+        int i = binarySearch( key );
+        if( i >= 0 )
+        {
+            mValues[i] = value;
+            return;
+        }
+        
+        i = ~i;
+        if( mSize >= mKeys.length )
+        {
+            int[] keys = new int[mSize * 2];
+            int[] values = new int[mSize * 2];
+            System.arraycopy( mKeys, 0, keys, 0, mSize );
+            System.arraycopy( mValues, 0, values, 0, mSize );
+            mKeys = keys;
+            mValues = values;
+        }
+        System.arraycopy( mKeys, i, mKeys, i + 1, mSize - i );
+        System.arraycopy( mValues, i, mValues, i + 1, mSize - i );
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+    
+    public int size()
+    {
+        return mSize;
+    }
+    
+    public int keyAt( int index )
+    {
+        return mKeys[index];
+    }
+    
+    public int valueAt( int index )
+    {
+        return mValues[index];
+    }
+    
+    public int indexOfValue( int value )
+    {
+        for( int i = 0; i < mSize; i++ )
+        {
+            if( mValues[i] == value )
+                return i;
+        }
+        return -1;
+    }
+    
+    public void clear()
+    {
+        mSize = 0;
+    }
+    
+    private int binarySearch( int key )
+    {
+        int lo = 0;
+        int hi = mSize - 1;
+        while( lo <= hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+            if( mKeys[mid] < key )
+                lo = mid + 1;
+            else if( mKeys[mid] > key )
+                hi = mid - 1;
+            else
+                return mid;
+        }
+        return ~lo;
+    }
+}
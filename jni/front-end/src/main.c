@@ -63,6 +63,8 @@ static m64p_handle l_ConfigUI = NULL;
 static const char *l_CoreLibPath = NULL;
 static const char *l_ConfigDirPath = NULL;
 static const char *l_ROMFilepath = NULL;       // filepath of ROM to load & run at startup
+static unsigned char *l_ROMBuffer = NULL;      // ROM image already in memory (inflated or mapped by Java), or NULL to read l_ROMFilepath
+static long  l_ROMBufferLength = 0;            // length of the in-memory ROM image
 
 #if defined(SHAREDIR)
   static const char *l_DataDirPath = SHAREDIR;
@@ -221,6 +223,23 @@ JNIEXPORT jint JNICALL Java_paulscode_android_mupen64plusae_CoreInterfaceNative_
         return (jint) 0;
 }
 
+// The buffer must be a direct ByteBuffer, and must stay reachable from Java until the ROM has been
+// opened; the core copies the image, so the buffer is not used after that.  The buffer may be a
+// read-only file mapping, so it must never be written to.  Pass NULL to go back to reading the ROM
+// from l_ROMFilepath.
+JNIEXPORT void JNICALL Java_paulscode_android_mupen64plusae_CoreInterfaceNative_setROMBuffer(
+                                    JNIEnv* env, jclass cls, jobject buffer, jint length )
+{
+    l_ROMBuffer = NULL;
+    l_ROMBufferLength = 0;
+    if( buffer != NULL )
+    {
+        l_ROMBuffer = (unsigned char *) (*env)->GetDirectBufferAddress( env, buffer );
+        if( l_ROMBuffer != NULL )
+            l_ROMBufferLength = (long) length;
+    }
+}
+
 static char strBuff[1024];
 JNIEXPORT jstring JNICALL Java_paulscode_android_mupen64plusae_CoreInterfaceNative_getHeaderName(
                                        JNIEnv* env, jclass cls, jstring jFilename )
@@ -936,50 +955,66 @@ int main(int argc, char *argv[])
         SaveConfigurationOptions();
 
     /* load ROM image */
-    FILE *fPtr = fopen(l_ROMFilepath, "rb");
-    if (fPtr == NULL)
-    {
-        DebugMessage(M64MSG_ERROR, "couldn't open ROM file '%s' for reading.", l_ROMFilepath);
-        (*CoreShutdown)();
-        DetachCoreLib();
-        return 7;
-    }
-
-    /* get the length of the ROM, allocate memory buffer, load it from disk */
     long romlength = 0;
-    fseek(fPtr, 0L, SEEK_END);
-    romlength = ftell(fPtr);
-    fseek(fPtr, 0L, SEEK_SET);
-    unsigned char *ROM_buffer = (unsigned char *) malloc(romlength);
-    if (ROM_buffer == NULL)
+    unsigned char *ROM_buffer = NULL;
+    if (l_ROMBuffer != NULL)
     {
-        DebugMessage(M64MSG_ERROR, "couldn't allocate %li-byte buffer for ROM image file '%s'.", romlength, l_ROMFilepath);
-        fclose(fPtr);
-        (*CoreShutdown)();
-        DetachCoreLib();
-        return 8;
+        /* paulscode: the Java front-end inflates zipped ROMs into memory, and maps the others read-only */
+        romlength = l_ROMBufferLength;
+        ROM_buffer = l_ROMBuffer;
     }
-    else if (fread(ROM_buffer, 1, romlength, fPtr) != romlength)
+    else
     {
-        DebugMessage(M64MSG_ERROR, "couldn't read %li bytes from ROM image file '%s'.", romlength, l_ROMFilepath);
-        free(ROM_buffer);
+        FILE *fPtr = fopen(l_ROMFilepath, "rb");
+        if (fPtr == NULL)
+        {
+            DebugMessage(M64MSG_ERROR, "couldn't open ROM file '%s' for reading.", l_ROMFilepath);
+            (*CoreShutdown)();
+            DetachCoreLib();
+            return 7;
+        }
+
+        /* get the length of the ROM, allocate memory buffer, load it from disk */
+        fseek(fPtr, 0L, SEEK_END);
+        romlength = ftell(fPtr);
+        fseek(fPtr, 0L, SEEK_SET);
+        ROM_buffer = (unsigned char *) malloc(romlength);
+        if (ROM_buffer == NULL)
+        {
+            DebugMessage(M64MSG_ERROR, "couldn't allocate %li-byte buffer for ROM image file '%s'.", romlength, l_ROMFilepath);
+            fclose(fPtr);
+            (*CoreShutdown)();
+            DetachCoreLib();
+            return 8;
+        }
+        else if (fread(ROM_buffer, 1, romlength, fPtr) != romlength)
+        {
+            DebugMessage(M64MSG_ERROR, "couldn't read %li bytes from ROM image file '%s'.", romlength, l_ROMFilepath);
+            free(ROM_buffer);
+            fclose(fPtr);
+            (*CoreShutdown)();
+            DetachCoreLib();
+            return 9;
+        }
         fclose(fPtr);
-        (*CoreShutdown)();
-        DetachCoreLib();
-        return 9;
     }
-    fclose(fPtr);
 
     /* Try to load the ROM image into the core */
-    if ((*CoreDoCommand)(M64CMD_ROM_OPEN, (int) romlength, ROM_buffer) != M64ERR_SUCCESS)
+    m64p_error openResult = (*CoreDoCommand)(M64CMD_ROM_OPEN, (int) romlength, ROM_buffer);
+
+    /* the core copies the ROM image, so we can release this buffer immediately */
+    if (ROM_buffer != l_ROMBuffer)
+        free(ROM_buffer);
+    l_ROMBuffer = NULL;
+    l_ROMBufferLength = 0;
+
+    if (openResult != M64ERR_SUCCESS)
     {
         DebugMessage(M64MSG_ERROR, "core failed to open ROM image file '%s'.", l_ROMFilepath);
-        free(ROM_buffer);
         (*CoreShutdown)();
         DetachCoreLib();
         return 10;
     }
-    free(ROM_buffer); /* the core copies the ROM image, so we can release this buffer immediately */
 
     /* handle the cheat codes */
     CheatStart(l_CheatMode, l_CheatNumList);
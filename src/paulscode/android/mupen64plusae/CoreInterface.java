@@ -20,10 +20,13 @@
  */
 package paulscode.android.mupen64plusae;
 
+import java.nio.ByteBuffer;
+
 import paulscode.android.mupen64plusae.persistent.AppData;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigPatch;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import paulscode.android.mupen64plusae.util.Notifier;
+import paulscode.android.mupen64plusae.util.StartupTrace;
 import android.annotation.TargetApi;
 import android.app.Activity;
 import android.graphics.PixelFormat;
@@ -102,6 +105,7 @@ public class CoreInterface
     // Internal flags/caches
     protected static boolean sIsRestarting = false;
     protected static String sCheatOptions = null;
+    protected static ByteBuffer sRomBuffer = null;
     
     // Threading objects
     protected static Thread sCoreThread;
@@ -124,7 +128,10 @@ public class CoreInterface
         sSurface = surface;
         sAppData = new AppData( sActivity );
         sUserPrefs = new UserPrefs( sActivity );
+        
+        StartupTrace.Span span = StartupTrace.begin( "CoreInterface.syncConfigFiles" );
         syncConfigFiles( sUserPrefs, sAppData );
+        span.end();
     }
     
     @TargetApi( 11 )
@@ -183,7 +190,12 @@ public class CoreInterface
             sCoreThread.start();
             
             // Wait for the emulator to start running
+            StartupTrace.Span span = StartupTrace.begin( "CoreInterface.waitForEmuState" );
             waitForEmuState( CoreInterface.EMULATOR_STATE_RUNNING );
+            span.end();
+            
+            // The core has its own copy of the ROM by now
+            sRomBuffer = null;
             
             // Auto-load state and resume
             if( !sIsRestarting )
@@ -192,7 +204,9 @@ public class CoreInterface
                 sIsRestarting = false;
                 
                 Notifier.showToast( sActivity, R.string.toast_loadingSession );
+                span = StartupTrace.begin( "CoreInterface.loadAutoSave" );
                 CoreInterfaceNative.fileLoadEmulator( sUserPrefs.selectedGameAutoSavefile );
+                span.end();
             }
             
             resumeEmulator();
@@ -334,7 +348,7 @@ public class CoreInterface
         //@formatter:off
         
         // Core and GLES2RICE config file
-        ConfigFile mupen64plus_cfg = new ConfigFile( appData.mupen64plus_cfg );
+        ConfigPatch mupen64plus_cfg = new ConfigPatch();
         mupen64plus_cfg.put( "Core", "Version", "1.00" );
         mupen64plus_cfg.put( "Core", "OnScreenDisplay", "False" );
         mupen64plus_cfg.put( "Core", "R4300Emulator", user.r4300Emulator );
@@ -395,15 +409,15 @@ public class CoreInterface
         else
             mupen64plus_cfg.put( "Video-Rice", "ForceTextureFilter", "0");
         
-        mupen64plus_cfg.save();
+        mupen64plus_cfg.apply( appData.mupen64plus_cfg );
         
         // GLES2N64 config file
-        ConfigFile gles2n64_conf = new ConfigFile( appData.gles2n64_conf );
+        ConfigPatch gles2n64_conf = new ConfigPatch();
         gles2n64_conf.put( "[<sectionless!>]", "enable fog", booleanToString( user.isGles2N64FogEnabled ) );
         gles2n64_conf.put( "[<sectionless!>]", "enable alpha test", booleanToString( user.isGles2N64AlphaTestEnabled ) );
         gles2n64_conf.put( "[<sectionless!>]", "force screen clear", booleanToString( user.isGles2N64ScreenClearEnabled ) );
         gles2n64_conf.put( "[<sectionless!>]", "hack z", booleanToString( !user.isGles2N64DepthTestEnabled ) ); // hack z enabled means that depth test is disabled
-        gles2n64_conf.save();        
+        gles2n64_conf.apply( appData.gles2n64_conf );        
         //@formatter:on
     }
     
@@ -21,12 +21,16 @@
 package paulscode.android.mupen64plusae;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.Locale;
 
+import paulscode.android.mupen64plusae.persistent.RomMetadataCache;
 import paulscode.android.mupen64plusae.util.ErrorLogger;
-import paulscode.android.mupen64plusae.util.FileUtil;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
 import paulscode.android.mupen64plusae.util.Notifier;
+import paulscode.android.mupen64plusae.util.RomHeader;
 import paulscode.android.mupen64plusae.util.SafeMethods;
+import paulscode.android.mupen64plusae.util.StartupTrace;
 import paulscode.android.mupen64plusae.util.Utility;
 import android.media.AudioFormat;
 import android.media.AudioManager;
@@ -112,6 +116,8 @@ public class CoreInterfaceNative extends CoreInterface
     
     public static native void runAudioThread();
     
+    public static native void setROMBuffer( ByteBuffer romBuffer, int length );
+    
     public static native int stateEmulator();
     
     public static native void stateLoadEmulator();
@@ -144,7 +150,18 @@ public class CoreInterfaceNative extends CoreInterface
     
     public static void flipBuffers()
     {
-        sSurface.flipBuffers();
+        if( StartupTrace.isActive() )
+        {
+            // First frame since the app was launched
+            StartupTrace.Span span = StartupTrace.begin( "GameSurface.flipBuffers" );
+            sSurface.flipBuffers();
+            span.end();
+            StartupTrace.finish();
+        }
+        else
+        {
+            sSurface.flipBuffers();
+        }
         
         // Update frame rate info
         if( sFpsRecalcPeriod > 0 && sFpsListener != null )
@@ -200,6 +217,25 @@ public class CoreInterfaceNative extends CoreInterface
     
     public static Object getROMPath()
     {
+        StartupTrace.Span span = StartupTrace.begin( "CoreInterfaceNative.getROMPath" );
+        try
+        {
+            return openROM();
+        }
+        finally
+        {
+            span.end();
+        }
+    }
+    
+    // Prepares the selected ROM for the core, extracting or normalizing it if necessary
+    private static String openROM()
+    {
+        // Forget the buffer from any earlier launch, so the core never sees a stale pointer when
+        // this launch falls back to reading the file
+        sRomBuffer = null;
+        setROMBuffer( null, 0 );
+        
         String selectedGame = sUserPrefs.selectedGame;
         boolean isSelectedGameNull = selectedGame == null || !( new File( selectedGame ) ).exists();
         boolean isSelectedGameZipped = !isSelectedGameNull && selectedGame.length() >= 5
@@ -211,24 +247,24 @@ public class CoreInterfaceNative extends CoreInterface
         if( isSelectedGameNull )
         {
             SafeMethods.exit( "Invalid ROM", sActivity, 2000 );
+            return selectedGame;
         }
-        else if( isSelectedGameZipped )
+        
+        RomMetadataCache metadata = RomMetadataCache.getInstance( sAppData.rom_metadata_cache );
+        ExtractedRomCache romCache = new ExtractedRomCache( sAppData.extractedRomsDir,
+                sUserPrefs.romCacheQuota );
+        
+        if( isSelectedGameZipped )
         {
-            // Create the temp folder if it doesn't exist:
-            String tmpFolderName = sAppData.dataDir + "/tmp";
-            File tmpFolder = new File( tmpFolderName );
-            tmpFolder.mkdir();
-            
-            // Clear the folder if anything is in there:
-            String[] children = tmpFolder.list();
-            for( String child : children )
-            {
-                FileUtil.deleteFolder( new File( tmpFolder, child ) );
-            }
+            // Use the extracted copy if the ROM was played recently, or extract it for next time
+            String extracted = romCache.extract( selectedGame, metadata );
+            if( extracted != null )
+                return mapROM( extracted );
             
-            // Unzip the ROM
-            String selectedGameUnzipped = Utility.unzipFirstROM( new File( selectedGame ), tmpFolderName );
-            if( selectedGameUnzipped == null )
+            // Otherwise unzip the ROM straight into native memory; the core loads it from there
+            ByteBuffer romBuffer = Utility.unzipFirstROMToBuffer( new File( selectedGame ),
+                    metadata );
+            if( romBuffer == null )
             {
                 Log.v( "CoreInterface", "Cannot play zipped ROM: '" + selectedGame + "'" );
                 
@@ -242,12 +278,62 @@ public class CoreInterfaceNative extends CoreInterface
             }
             else
             {
-                return selectedGameUnzipped;
+                // Keep the buffer reachable until the core has copied it
+                sRomBuffer = romBuffer;
+                setROMBuffer( romBuffer, romBuffer.capacity() );
             }
         }
+        else
+        {
+            // Byte-swapped dumps are normalized once into the ROM cache, rather than swapped by
+            // the core on every launch
+            RomMetadataCache.Entry entry = metadata.lookup( selectedGame );
+            if( entry != null && entry.order != RomHeader.ORDER_Z64 )
+            {
+                String normalized = romCache.extract( selectedGame, metadata );
+                if( normalized != null )
+                    return mapROM( normalized );
+            }
+            
+            // The core doesn't need the checksums, so compute them once the game is running
+            if( entry != null && entry.md5 == null )
+                digestROM( selectedGame, metadata );
+            
+            return mapROM( selectedGame );
+        }
         return selectedGame;
     }
     
+    // Hands a big-endian ROM file to the core as a read-only memory mapping. If it can't be
+    // mapped, the core just reads the file itself.
+    private static String mapROM( String romPath )
+    {
+        ByteBuffer romBuffer = Utility.mapROM( new File( romPath ) );
+        if( romBuffer != null )
+        {
+            // Keep the mapping alive until the core has copied it
+            sRomBuffer = romBuffer;
+            setROMBuffer( romBuffer, romBuffer.capacity() );
+        }
+        return romPath;
+    }
+    
+    // Stores the checksums of an uncompressed ROM from a background thread, so the first launch
+    // of a ROM doesn't wait for a full read of it
+    private static void digestROM( final String romPath, final RomMetadataCache metadata )
+    {
+        Thread thread = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Utility.digestROM( new File( romPath ), metadata );
+            }
+        }, "RomDigest" );
+        thread.setPriority( Thread.MIN_PRIORITY );
+        thread.start();
+    }
+    
     /**
      * Constructs any extra parameters to pass to the front-end, based on user preferences
      * 
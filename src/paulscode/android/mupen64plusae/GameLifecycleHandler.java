@@ -34,9 +34,11 @@ import paulscode.android.mupen64plusae.input.provider.KeyProvider.ImeFormula;
 import paulscode.android.mupen64plusae.input.provider.NativeInputSource;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
+import paulscode.android.mupen64plusae.util.AssetSource;
 import paulscode.android.mupen64plusae.util.Demultiplexer;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.OUYAInterface;
+import paulscode.android.mupen64plusae.util.StartupTrace;
 import android.annotation.TargetApi;
 import android.app.ActionBar;
 import android.app.Activity;
@@ -118,7 +120,11 @@ public class GameLifecycleHandler implements View.OnKeyListener
         mUserPrefs = new UserPrefs( mActivity );
         mUserPrefs.enforceLocale( mActivity );
         
+        // The process may have been restarted straight into the game, skipping MainActivity
+        AssetSource.initialize( mActivity.getAssets(), mAppData.dataDir, MainActivity.SOURCE_DIR );
+        
         // Load native libraries
+        StartupTrace.Span span = StartupTrace.begin( "GameLifecycleHandler.loadNativeLibs" );
         if( mIsXperiaPlay )
             FileUtil.loadNativeLibName( "xperia-touchpad" );
         FileUtil.loadNativeLibName( "SDL" );
@@ -128,6 +134,7 @@ public class GameLifecycleHandler implements View.OnKeyListener
         FileUtil.loadNativeLib( mUserPrefs.audioPlugin.path );
         FileUtil.loadNativeLib( mUserPrefs.inputPlugin.path );
         FileUtil.loadNativeLib( mUserPrefs.rspPlugin.path );
+        span.end();
         
         // For Honeycomb, let the action bar overlay the rendered view (rather than squeezing it)
         // For earlier APIs, remove the title bar to yield more space
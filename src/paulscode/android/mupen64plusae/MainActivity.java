@@ -21,14 +21,18 @@
 package paulscode.android.mupen64plusae;
 
 import java.io.File;
+import java.util.List;
 
 import paulscode.android.mupen64plusae.persistent.AppData;
+import paulscode.android.mupen64plusae.persistent.CheatIndex;
+import paulscode.android.mupen64plusae.persistent.RomCatalog;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import paulscode.android.mupen64plusae.util.AssetExtractor;
 import paulscode.android.mupen64plusae.util.AssetExtractor.OnExtractionProgressListener;
+import paulscode.android.mupen64plusae.util.AssetSource;
 import paulscode.android.mupen64plusae.util.ErrorLogger;
-import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.Notifier;
+import paulscode.android.mupen64plusae.util.StartupTrace;
 import android.app.Activity;
 import android.content.Intent;
 import android.os.Bundle;
@@ -43,15 +47,6 @@ import android.widget.TextView;
  */
 public class MainActivity extends Activity implements OnExtractionProgressListener
 {
-    /**
-     * Asset version number, used to determine stale assets. Increment this number every time the
-     * assets are updated on disk.
-     */
-    private static final int ASSET_VERSION = 7;
-    
-    /** The total number of assets to be extracted (for computing progress %). */
-    private static final int TOTAL_ASSETS = 221;
-    
     /** The minimum duration that the splash screen is shown, in milliseconds. */
     private static final int SPLASH_DELAY = 1000;
     
@@ -59,7 +54,10 @@ public class MainActivity extends Activity implements OnExtractionProgressListen
      * The subdirectory within the assets directory to extract. A subdirectory is necessary to avoid
      * extracting all the default system assets in addition to ours.
      */
-    private static final String SOURCE_DIR = "mupen64plus_data";
+    static final String SOURCE_DIR = "mupen64plus_data";
+    
+    /** The manifest of the assets in SOURCE_DIR, generated at build time. */
+    private static final String SOURCE_MANIFEST = "mupen64plus_data.manifest";
     
     /** Persistent application data. */
     private AppData mAppData;
@@ -67,9 +65,6 @@ public class MainActivity extends Activity implements OnExtractionProgressListen
     /** The text view that displays extraction progress info. */
     private TextView mTextView;
     
-    /** The running count of assets extracted. */
-    private int mAssetsExtracted;
-    
     /*
      * (non-Javadoc)
      * 
@@ -86,12 +81,19 @@ public class MainActivity extends Activity implements OnExtractionProgressListen
         // Get app data
         mAppData = new AppData( this );
         
+        // Time the launch from here to the first emulated frame
+        StartupTrace.start( mAppData.startup_trace, mAppData.startup_trace_history,
+                mAppData.appVersion + " (" + mAppData.appVersionCode + ")" );
+        
         // Initialize the error logger
         ErrorLogger.initialize( mAppData.error_log );
         
         // Initialize the toast/status bar notifier
         Notifier.initialize( this );
         
+        // Read the skins straight from the APK
+        AssetSource.initialize( getAssets(), mAppData.dataDir, SOURCE_DIR );
+        
         // Don't let the activity sleep in the middle of extraction
         getWindow().setFlags( LayoutParams.FLAG_KEEP_SCREEN_ON, LayoutParams.FLAG_KEEP_SCREEN_ON );
         
@@ -130,21 +132,36 @@ public class MainActivity extends Activity implements OnExtractionProgressListen
         {
             // This runs on non-UI thread and ensures that the app is responsive during the lengthy
             // extraction process
-            boolean success = true;
             
-            // Extract the assets if they are out of date
-            if( mAppData.getAssetVersion() != ASSET_VERSION )
+            // Extract the assets that are missing or out of date
+            StartupTrace.Span span = StartupTrace.begin( "MainActivity.syncAssets" );
+            List<String> extracted = AssetExtractor.syncAssets( getAssets(), SOURCE_DIR,
+                    mAppData.dataDir, SOURCE_MANIFEST, MainActivity.this );
+            boolean success = extracted != null;
+            span.end();
+            
+            // Compile the cheat database and ROM catalog when they change, so they never have to
+            // be parsed
+            if( success )
             {
-                FileUtil.deleteFolder( new File( mAppData.dataDir ) );
-                mAssetsExtracted = 0;
-                success = AssetExtractor.extractAssets( getAssets(), SOURCE_DIR, mAppData.dataDir,
-                        MainActivity.this );
+                span = StartupTrace.begin( "MainActivity.compileIndexes" );
+                if( extracted.contains( getAssetPath( mAppData.mupen64plus_cht ) )
+                        || !new File( mAppData.mupen64plus_cht_idx ).exists() )
+                    CheatIndex.compile( mAppData.mupen64plus_cht, mAppData.mupen64plus_cht_idx );
+                if( extracted.contains( getAssetPath( mAppData.mupen64plus_ini ) )
+                        || !new File( mAppData.mupen64plus_ini_idx ).exists() )
+                    RomCatalog.compile( mAppData.mupen64plus_ini, mAppData.mupen64plus_ini_idx );
+                span.end();
             }
             
+            // Fold the error journal from the last session into the error log
+            span = StartupTrace.begin( "ErrorLogger.compact" );
+            ErrorLogger.compact();
+            span.end();
+            
             // Launch menu activity if successful; post failure notice otherwise
             if( success )
             {
-                mAppData.putAssetVersion( ASSET_VERSION );
                 updateText( R.string.assetExtractor_finished );
                 
                 // Launch the MenuActivity
@@ -165,16 +182,28 @@ public class MainActivity extends Activity implements OnExtractionProgressListen
      * (non-Javadoc)
      * 
      * @see paulscode.android.mupen64plusae.util.AssetExtractor.OnExtractionProgressListener#
-     * onExtractionProgress(java.lang.String)
+     * onExtractionProgress(java.lang.String, long, long)
      */
     @Override
-    public void onExtractionProgress( final String nextFileExtracted )
+    public void onExtractionProgress( final String nextFileExtracted, long bytesDone,
+            long totalBytes )
     {
-        float percent = ( 100f * mAssetsExtracted ) / (float) TOTAL_ASSETS;
-        mAssetsExtracted++;
+        float percent = totalBytes > 0 ? ( 100f * bytesDone ) / (float) totalBytes : 0;
         updateText( R.string.assetExtractor_progress, percent, nextFileExtracted );
     }
     
+    /**
+     * Gets the path of an extracted file relative to the data directory, as listed in the asset
+     * manifest.
+     * 
+     * @param path The absolute path of the file.
+     * @return The relative path.
+     */
+    private String getAssetPath( String path )
+    {
+        return path.substring( mAppData.dataDir.length() + 1 );
+    }
+    
     /**
      * Update the status text from the UI thread.
      * 
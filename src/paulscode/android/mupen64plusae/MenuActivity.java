@@ -25,17 +25,21 @@ import java.io.File;
 import paulscode.android.mupen64plusae.input.TouchController;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
+import paulscode.android.mupen64plusae.util.AssetExtractor;
 import paulscode.android.mupen64plusae.util.ChangeLog;
 import paulscode.android.mupen64plusae.util.CrashTester;
 import paulscode.android.mupen64plusae.util.DeviceUtil;
 import paulscode.android.mupen64plusae.util.ErrorLogger;
+import paulscode.android.mupen64plusae.util.ExtractedRomCache;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.Notifier;
 import paulscode.android.mupen64plusae.util.OUYAInterface;
 import paulscode.android.mupen64plusae.util.PrefUtil;
 import paulscode.android.mupen64plusae.util.Prompt;
 import paulscode.android.mupen64plusae.util.Prompt.OnConfirmListener;
+import paulscode.android.mupen64plusae.util.StartupTrace;
 import paulscode.android.mupen64plusae.util.TaskHandler;
+import paulscode.android.mupen64plusae.util.TexturePackImporter;
 import paulscode.android.mupen64plusae.util.Utility;
 import android.annotation.TargetApi;
 import android.app.AlertDialog.Builder;
@@ -61,10 +65,13 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
     // These constants must match the keys used in res/xml/preferences.xml
     
     private static final String ACTION_PLAY = "actionPlay";
+    private static final String ACTION_ROM_LIBRARY = "actionRomLibrary";
     private static final String ACTION_DEVICE_INFO = "actionDeviceInfo";
+    private static final String ACTION_STARTUP_TRACE = "actionStartupTrace";
     private static final String ACTION_CONTROLLER_INFO = "actionControllerInfo";
     private static final String ACTION_MIGRATE_SLOT_SAVES = "actionMigrateSlotSaves";
     private static final String ACTION_CRASH_TEST = "actionCrashTest";
+    private static final String ACTION_CLEAR_ROM_CACHE = "actionClearRomCache";
     private static final String ACTION_RELOAD_ASSETS = "actionReloadAssets";
     private static final String ACTION_RESET_USER_PREFS = "actionResetUserPrefs";
     private static final String ACTION_HELP = "actionHelp";
@@ -138,7 +145,9 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         PrefUtil.validateListPreference( res, prefs, "pluginCore", R.string.pluginCore_default, R.array.pluginCore_values );
         
         // Load user preference menu structure from XML and update view
+        StartupTrace.Span span = StartupTrace.begin( "MenuActivity.addPreferencesFromResource" );
         addPreferencesFromResource( R.xml.preferences );
+        span.end();
         
         // Refresh the preference data wrapper
         mUserPrefs = new UserPrefs( this );
@@ -150,8 +159,10 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         
         // Handle certain menu items that require extra processing or aren't actually preferences
         PrefUtil.setOnPreferenceClickListener( this, ACTION_DEVICE_INFO, this );
+        PrefUtil.setOnPreferenceClickListener( this, ACTION_STARTUP_TRACE, this );
         PrefUtil.setOnPreferenceClickListener( this, ACTION_CONTROLLER_INFO, this );
         PrefUtil.setOnPreferenceClickListener( this, ACTION_MIGRATE_SLOT_SAVES, this );
+        PrefUtil.setOnPreferenceClickListener( this, ACTION_CLEAR_ROM_CACHE, this );
         PrefUtil.setOnPreferenceClickListener( this, ACTION_RELOAD_ASSETS, this );
         PrefUtil.setOnPreferenceClickListener( this, ACTION_RESET_USER_PREFS, this );
         PrefUtil.setOnPreferenceClickListener( this, ACTION_HELP, this );
@@ -196,6 +207,9 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         SharedPreferences sharedPreferences = PreferenceManager.getDefaultSharedPreferences( this );
         refreshViews( sharedPreferences, mUserPrefs );
         sharedPreferences.registerOnSharedPreferenceChangeListener( this );
+        
+        // The menu is up; the time spent browsing it isn't part of the launch
+        StartupTrace.endSegment( StartupTrace.SEGMENT_LAUNCH );
     }
     
     @Override
@@ -233,6 +247,10 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         boolean isValidGame = selectedGame.exists() && selectedGame.isFile();
         PrefUtil.enablePreference( this, ACTION_PLAY, isValidGame );
         
+        // Enable the ROM library only if its folder actually exists
+        PrefUtil.enablePreference( this, ACTION_ROM_LIBRARY,
+                new File( user.romLibraryDir ).isDirectory() );
+        
         // Enable the input menu only if the input plug-in is not a dummy
         PrefUtil.enablePreference( this, SCREEN_INPUT, user.inputPlugin.enabled );
         
@@ -275,12 +293,18 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         if( key.equals( ACTION_DEVICE_INFO ) )
             actionDeviceInfo();
         
+        else if( key.equals( ACTION_STARTUP_TRACE ) )
+            actionStartupTrace();
+        
         else if( key.equals( ACTION_CONTROLLER_INFO ) )
             actionControllerInfo();
         
         else if( key.equals( ACTION_MIGRATE_SLOT_SAVES ) )
             actionMigrateSlotSaves();
         
+        else if( key.equals( ACTION_CLEAR_ROM_CACHE ) )
+            actionClearRomCache();
+        
         else if( key.equals( ACTION_RELOAD_ASSETS ) )
             actionReloadAssets();
         
@@ -308,6 +332,17 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         new Builder( this ).setTitle( title ).setMessage( message ).create().show();
     }
     
+    private void actionStartupTrace()
+    {
+        String title = getString( R.string.actionStartupTrace_title );
+        String message = StartupTrace.getSummary( mAppData.startup_trace_history );
+        if( message == null )
+            message = getString( R.string.actionStartupTrace_none );
+        else
+            message += "\n" + getString( R.string.actionStartupTrace_file, mAppData.startup_trace );
+        new Builder( this ).setTitle( title ).setMessage( message ).create().show();
+    }
+    
     private void actionControllerInfo()
     {
         String title = getString( R.string.actionControllerInfo_title );
@@ -341,9 +376,25 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         }
     }
     
+    private void actionClearRomCache()
+    {
+        String title = getString( R.string.confirm_title );
+        String message = getString( R.string.actionClearRomCache_popupMessage );
+        Prompt.promptConfirm( this, title, message, new OnConfirmListener()
+        {
+            @Override
+            public void onConfirm()
+            {
+                new ExtractedRomCache( mAppData.extractedRomsDir, mUserPrefs.romCacheQuota )
+                        .clear();
+                Notifier.showToast( MenuActivity.this, R.string.actionClearRomCache_done );
+            }
+        } );
+    }
+    
     private void actionReloadAssets()
     {
-        mAppData.putAssetVersion( 0 );
+        AssetExtractor.invalidateAssets( mAppData.dataDir );
         startActivity( new Intent( this, MainActivity.class ) );
         finish();
     }
@@ -426,28 +477,15 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
             return;
         }
         
+        final TexturePackImporter importer = new TexturePackImporter( filename,
+                mAppData.dataDir + "/data/hires_texture" );
         TaskHandler.Task task = new TaskHandler.Task()
         {
             @Override
             public void run()
             {
-                String headerName = Utility.getTexturePackName( filename );
-                if( !ErrorLogger.hasError() )
-                {
-                    if( TextUtils.isEmpty( headerName ) )
-                    {
-                        ErrorLogger
-                                .setLastError( "getTexturePackName returned null in MenuActivity.processTexturePak" );
-                        ErrorLogger.putLastError( "Video", "pathHiResTextures" );
-                    }
-                    else
-                    {
-                        String outputFolder = mAppData.dataDir + "/data/hires_texture/"
-                                + headerName;
-                        FileUtil.deleteFolder( new File( outputFolder ) );
-                        Utility.unzipAll( new File( filename ), outputFolder );
-                    }
-                }
+                if( importer.importPack() == null && ErrorLogger.hasError() )
+                    ErrorLogger.putLastError( "Video", "pathHiResTextures" );
             }
             
             @Override
@@ -462,6 +500,13 @@ public class MenuActivity extends PreferenceActivity implements OnPreferenceClic
         
         String title = getString( R.string.pathHiResTexturesTask_title );
         String message = getString( R.string.pathHiResTexturesTask_message );
-        TaskHandler.run( this, title, message, task );
+        TaskHandler.run( this, title, message, task, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                importer.cancel();
+            }
+        } );
     }
 }
@@ -23,10 +23,12 @@ package paulscode.android.mupen64plusae;
 import java.io.File;
 
 import paulscode.android.mupen64plusae.persistent.AppData;
+import paulscode.android.mupen64plusae.persistent.CheatIndex;
+import paulscode.android.mupen64plusae.persistent.CheatIndex.Cheat;
+import paulscode.android.mupen64plusae.persistent.CheatIndex.CheatSection;
 import paulscode.android.mupen64plusae.persistent.CheatPreference;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
 import paulscode.android.mupen64plusae.persistent.PlayerMapPreference;
+import paulscode.android.mupen64plusae.persistent.RomMetadataCache;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import paulscode.android.mupen64plusae.util.FileUtil;
 import paulscode.android.mupen64plusae.util.Notifier;
@@ -34,9 +36,9 @@ import paulscode.android.mupen64plusae.util.PrefUtil;
 import paulscode.android.mupen64plusae.util.Prompt;
 import paulscode.android.mupen64plusae.util.Prompt.OnConfirmListener;
 import paulscode.android.mupen64plusae.util.SafeMethods;
+import paulscode.android.mupen64plusae.util.StartupTrace;
 import paulscode.android.mupen64plusae.util.TaskHandler;
 import paulscode.android.mupen64plusae.util.TaskHandler.Task;
-import paulscode.android.mupen64plusae.util.Utility;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
@@ -81,6 +83,7 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
     protected void onCreate( Bundle savedInstanceState )
     {
         super.onCreate( savedInstanceState );
+        StartupTrace.beginSegment( StartupTrace.SEGMENT_PLAY_MENU );
         
         // Get app data and user preferences
         mAppData = new AppData( this );
@@ -102,10 +105,15 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         if( mUserPrefs.isCheatOptionsShown )
         {
             // Populate cheats category with menu items
-            if( mUserPrefs.selectedGame.equals( mAppData.getLastRom() ) )
+            RomMetadataCache.Entry entry = RomMetadataCache.getInstance(
+                    mAppData.rom_metadata_cache ).get( mUserPrefs.selectedGame );
+            if( entry != null )
             {
                 // Use the cached CRC and add the cheats menu items
-                build( mAppData.getLastCrc() );
+                StartupTrace.Span span = StartupTrace.begin( "PlayMenuActivity.build" );
+                build( entry.getCrc() );
+                span.end();
+                StartupTrace.endSegment( StartupTrace.SEGMENT_PLAY_MENU );
             }
             else
             {
@@ -117,6 +125,7 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         {
             // Hide the cheats category
             PrefUtil.removePreference( this, SCREEN_PLAY, CATEGORY_CHEATS );
+            StartupTrace.endSegment( StartupTrace.SEGMENT_PLAY_MENU );
         }
     }
     
@@ -187,9 +196,6 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         Log.v( "PlayMenuActivity", "rebuilding for ROM = " + rom );
         Notifier.showToast( PlayMenuActivity.this, R.string.toast_rebuildingCheats );
         
-        // Place to unzip the ROM if necessary
-        final String tmpFolderName = mAppData.dataDir + "/tmp";
-        
         // Define the task to be done on a separate thread
         Task task = new Task()
         {
@@ -198,15 +204,22 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
             @Override
             public void run()
             {
-                crc = Utility.getHeaderCRC( rom, tmpFolderName );
+                StartupTrace.Span span = StartupTrace.begin( "PlayMenuActivity.rebuild" );
+                RomMetadataCache cache = RomMetadataCache
+                        .getInstance( mAppData.rom_metadata_cache );
+                RomMetadataCache.Entry entry = cache.lookup( rom );
+                cache.save();
+                crc = entry == null ? null : entry.getCrc();
+                span.end();
             }
             
             @Override
             public void onComplete()
             {
-                mAppData.putLastRom( rom );
-                mAppData.putLastCrc( crc );
+                StartupTrace.Span span = StartupTrace.begin( "PlayMenuActivity.build" );
                 build( crc );
+                span.end();
+                StartupTrace.endSegment( StartupTrace.SEGMENT_PLAY_MENU );
             }
         };
         
@@ -222,77 +235,69 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         if( crc == null )
             return;
         
-        // Get the appropriate section of the config file, using CRC as the key
-        ConfigFile mupen64plus_cht = new ConfigFile( mAppData.dataDir + "/data/mupen64plus.cht" );
-        ConfigSection configSection = mupen64plus_cht.match( "^" + crc.replace( ' ', '.' ) + ".*" );
+        // Get the cheats for this game from the compiled index, using CRC as the key
+        // (the index is compiled from the cheat database if missing or out of date)
+        CheatIndex cheatIndex = CheatIndex.open( mAppData.mupen64plus_cht, mAppData.mupen64plus_cht_idx );
+        CheatSection cheatSection = cheatIndex == null ? null : cheatIndex.lookup( crc );
         
-        if( configSection == null )
+        if( cheatSection == null )
         {
             Log.w( "PlayMenuActivity", "No cheat section found for '" + crc + "'" );
             return;
         }
         
         // Set the title of the menu to the game name, if available
-        // String ROM_name = configSection.get( "Name" );
+        // String ROM_name = cheatSection.name;
         // if( !TextUtils.isEmpty( ROM_name ) )
         // setTitle( ROM_name );
         
         // Layout the menu, populating it with appropriate cheat options
         PreferenceCategory cheatsCategory = (PreferenceCategory) findPreference( CATEGORY_CHEATS );
-        String cheat = " ";
-        for( int i = 0; !TextUtils.isEmpty( cheat ); i++ )
+        for( int i = 0; i < cheatSection.cheats.size(); i++ )
         {
-            cheat = configSection.get( "Cheat" + i );
-            if( !TextUtils.isEmpty( cheat ) )
+            Cheat cheat = cheatSection.cheats.get( i );
+            
+            // Get the short title of the cheat (shown in the menu)
+            String title;
+            if( TextUtils.isEmpty( cheat.name ) )
             {
-                // Get the short title of the cheat (shown in the menu)
-                int x = cheat.indexOf( "," );
-                String title;
-                if( x < 3 || x >= cheat.length() )
-                {
-                    // Title not available, just use a default string for the menu
-                    title = getString( R.string.cheats_defaultName, i );
-                }
-                else
-                {
-                    // Title available, remove the leading/trailing quotation marks
-                    title = cheat.substring( 1, x - 1 );
-                }
-                
-                // Get the descriptive note for this cheat (shown on long-click)
-                final String notes = configSection.get( "Cheat" + i + "_N" );
-                
-                // Get the options for this cheat
-                final String val_O = configSection.get( "Cheat" + i + "_O" );
-                String[] optionStrings = null;
+                // Title not available, just use a default string for the menu
+                title = getString( R.string.cheats_defaultName, i );
+            }
+            else
+            {
+                title = cheat.name;
+            }
+            
+            // Get the options for this cheat
+            String[] optionStrings = null;
+            
+            if( !TextUtils.isEmpty( cheat.options ) )
+            {
+                // This is a multi-choice cheat
+                // Parse the comma-delimited string to get the map elements
+                String[] uOpts = cheat.options.split( "," );
+                optionStrings = new String[uOpts.length];
                 
-                if( !TextUtils.isEmpty( val_O ) )
+                // Each element is a key-value pair
+                for( int z = 0; z < uOpts.length; z++ )
                 {
-                    // This is a multi-choice cheat
-                    // Parse the comma-delimited string to get the map elements
-                    String[] uOpts = val_O.split( "," );
-                    optionStrings = new String[uOpts.length];
-                    
-                    // Each element is a key-value pair
-                    for( int z = 0; z < uOpts.length; z++ )
-                    {
-                        // The first non-leading space character is the pair delimiter
-                        optionStrings[z] = uOpts[z].trim();
-                        int c = optionStrings[z].indexOf( " " );
-                        if( c > -1 && c < optionStrings[z].length() - 1 )
-                            optionStrings[z] = optionStrings[z].substring( c + 1 );
-                        else
-                            optionStrings[z] = getString( R.string.cheats_longPress );
-                    }
+                    // The first non-leading space character is the pair delimiter
+                    optionStrings[z] = uOpts[z].trim();
+                    int c = optionStrings[z].indexOf( " " );
+                    if( c > -1 && c < optionStrings[z].length() - 1 )
+                        optionStrings[z] = optionStrings[z].substring( c + 1 );
+                    else
+                        optionStrings[z] = getString( R.string.cheats_longPress );
                 }
-                
-                // Create the menu item associated with this cheat
-                CheatPreference pref = new CheatPreference( this, title, notes, optionStrings );
-                pref.setKey( crc + " Cheat" + i );
-                
-                // Add the preference menu item to the cheats category
-                cheatsCategory.addPreference( pref );
             }
+            
+            // Create the menu item associated with this cheat (notes are shown on long-click)
+            CheatPreference pref = new CheatPreference( this, title, cheat.notes, optionStrings );
+            pref.setKey( crc + " Cheat" + i );
+            
+            // Add the preference menu item to the cheats category
+            cheatsCategory.addPreference( pref );
         }
     }
     
@@ -316,6 +321,9 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
             }
         }
         
+        // Time the game start separately from the menus
+        StartupTrace.beginSegment( StartupTrace.SEGMENT_GAME );
+        
         // Wait for the CRC calculation thread to finish
         SafeMethods.join( crcThread, 0 );
         
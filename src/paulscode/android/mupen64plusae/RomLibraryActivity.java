@@ -0,0 +1,153 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.persistent.AppData;
+import paulscode.android.mupen64plusae.persistent.RomCatalog;
+import paulscode.android.mupen64plusae.persistent.RomMetadataCache;
+import paulscode.android.mupen64plusae.persistent.UserPrefs;
+import paulscode.android.mupen64plusae.util.Notifier;
+import paulscode.android.mupen64plusae.util.Prompt;
+import paulscode.android.mupen64plusae.util.Prompt.ListItemTwoTextIconPopulator;
+import paulscode.android.mupen64plusae.util.RomScanner;
+import paulscode.android.mupen64plusae.util.RomScanner.RomInfo;
+import android.app.ListActivity;
+import android.content.Intent;
+import android.os.Bundle;
+import android.preference.PreferenceManager;
+import android.view.View;
+import android.view.Window;
+import android.widget.ArrayAdapter;
+import android.widget.ImageView;
+import android.widget.ListView;
+import android.widget.TextView;
+
+/**
+ * Lists the ROMs found under the ROM library folder. The list fills in while the folder is still
+ * being scanned, and picking a ROM selects it and opens the play menu.
+ */
+public class RomLibraryActivity extends ListActivity implements RomScanner.Listener
+{
+    // This constant must match the key used in res/xml/preferences.xml
+    private static final String PATH_SELECTED_GAME = "pathSelectedGame";
+    
+    // The ROMs found so far
+    private ArrayAdapter<RomInfo> mAdapter = null;
+    
+    // The folder being scanned
+    private String mLibraryDir = null;
+    
+    // The scan in progress, if any
+    private RomScanner mScanner = null;
+    
+    @Override
+    protected void onCreate( Bundle savedInstanceState )
+    {
+        super.onCreate( savedInstanceState );
+        requestWindowFeature( Window.FEATURE_INDETERMINATE_PROGRESS );
+        
+        AppData appData = new AppData( this );
+        UserPrefs userPrefs = new UserPrefs( this );
+        userPrefs.enforceLocale( this );
+        mLibraryDir = userPrefs.romLibraryDir;
+        
+        mAdapter = Prompt.createAdapter( this, new ArrayList<RomInfo>(),
+                new ListItemTwoTextIconPopulator<RomInfo>()
+                {
+                    @Override
+                    public void onPopulateListItem( RomInfo info, int position, TextView text1,
+                            TextView text2, ImageView icon )
+                    {
+                        text1.setText( info.getDisplayName() );
+                        text2.setText( new File( info.entry.path ).getName() );
+                        icon.setVisibility( View.GONE );
+                    }
+                } );
+        setListAdapter( mAdapter );
+        
+        // The catalog was compiled by MainActivity, so opening it only maps the index
+        RomCatalog catalog = RomCatalog.open( appData.mupen64plus_ini,
+                appData.mupen64plus_ini_idx );
+        RomMetadataCache cache = RomMetadataCache.getInstance( appData.rom_metadata_cache );
+        
+        setProgressBarIndeterminateVisibility( true );
+        mScanner = new RomScanner( cache, catalog, this );
+        mScanner.start( Arrays.asList( mLibraryDir ) );
+    }
+    
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        if( mScanner != null )
+        {
+            mScanner.cancel();
+            mScanner = null;
+        }
+    }
+    
+    @Override
+    public void onRomsFound( List<RomInfo> roms )
+    {
+        mAdapter.setNotifyOnChange( false );
+        for( RomInfo info : roms )
+            mAdapter.add( info );
+        mAdapter.sort( NAME_ORDER );
+        mAdapter.notifyDataSetChanged();
+    }
+    
+    @Override
+    public void onScanFinished( int total, boolean cancelled )
+    {
+        mScanner = null;
+        if( cancelled )
+            return;
+        
+        setProgressBarIndeterminateVisibility( false );
+        if( total == 0 )
+            Notifier.showToast( this, R.string.romLibrary_none, mLibraryDir );
+    }
+    
+    @Override
+    protected void onListItemClick( ListView l, View v, int position, long id )
+    {
+        // Select the ROM, then carry on as if it had been picked in the main menu
+        RomInfo info = mAdapter.getItem( position );
+        PreferenceManager.getDefaultSharedPreferences( this ).edit()
+                .putString( PATH_SELECTED_GAME, info.entry.path ).commit();
+        startActivity( new Intent( this, PlayMenuActivity.class ) );
+    }
+    
+    private static final Comparator<RomInfo> NAME_ORDER = new Comparator<RomInfo>()
+    {
+        @Override
+        public int compare( RomInfo lhs, RomInfo rhs )
+        {
+            return lhs.getDisplayName().compareToIgnoreCase( rhs.getDisplayName() );
+        }
+    };
+}
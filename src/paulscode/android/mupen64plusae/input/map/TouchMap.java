@@ -312,7 +312,9 @@ public class TouchMap
     }
     
     /**
-     * Loads all touch map data from the filesystem.
+     * Loads all touch map data from the filesystem. The files are opened through
+     * {@link paulscode.android.mupen64plusae.util.AssetSource}, so the bundled skins are read
+     * straight from the APK unless they have been copied to the filesystem.
      * 
      * @param directory The directory containing the .ini and asset files.
      */
@@ -322,7 +324,7 @@ public class TouchMap
         clear();
         
         // Load the configuration file (pad.ini)
-        ConfigFile pad_ini = new ConfigFile( directory + "/pad.ini" );
+        ConfigFile pad_ini = new ConfigFile( directory + "/pad.ini", false );
         
         // Look up the mask colors
         loadMaskColors( pad_ini );
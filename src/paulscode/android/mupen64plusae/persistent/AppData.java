@@ -95,7 +95,7 @@ public class AppData
     /** Debug option: download data to SD card (default true). */
     public static final boolean DOWNLOAD_TO_SDCARD = true;
     
-    /** The hardware info, refreshed at the beginning of every session. */
+    /** The hardware info, detected once and shared by every instance. */
     public final HardwareInfo hardwareInfo;
     
     /** The package name. */
@@ -128,6 +128,9 @@ public class AppData
     /** The directory containing all fonts. */
     public final String fontsDir;
     
+    /** The directory containing ROMs extracted from ZIP files. */
+    public final String extractedRomsDir;
+    
     /** The name of the mupen64 core configuration file. */
     public final String mupen64plus_cfg;
     
@@ -137,23 +140,47 @@ public class AppData
     /** The name of the error log file. */
     public final String error_log;
     
+    /** The name of the startup trace file (Chrome trace format). */
+    public final String startup_trace;
+    
+    /** The name of the file holding the startup span totals of recent builds. */
+    public final String startup_trace_history;
+    
+    /** The name of the cheat database file. */
+    public final String mupen64plus_cht;
+    
+    /** The name of the compiled cheat index file. */
+    public final String mupen64plus_cht_idx;
+    
+    /** The name of the ROM catalog file. */
+    public final String mupen64plus_ini;
+    
+    /** The name of the compiled ROM catalog cache file. */
+    public final String mupen64plus_ini_idx;
+    
+    /** The name of the ROM metadata cache file. */
+    public final String rom_metadata_cache;
+    
     /** The object used to persist the settings. */
     private final SharedPreferences mPreferences;
     
+    /** The hardware info of this device, or null until the first instance is created. */
+    private static HardwareInfo sHardwareInfo = null;
+    
     // Shared preferences keys
-    private static final String KEY_ASSET_VERSION = "assetVersion";
     private static final String KEY_LAST_APP_VERSION_CODE = "lastAppVersion";
     private static final String KEY_LAST_SLOT = "lastSlot";
-    private static final String KEY_LAST_ROM = "lastRom";
-    private static final String KEY_LAST_CRC = "lastCrc";
+    private static final String KEY_HARDWARE_FINGERPRINT = "hardwareFingerprint";
+    private static final String KEY_CPU_HARDWARE = "cpuHardware";
+    private static final String KEY_CPU_PROCESSOR = "cpuProcessor";
+    private static final String KEY_CPU_FEATURES = "cpuFeatures";
+    private static final String KEY_CPU_REPORT = "cpuReport";
     // ... add more as needed
     
     // Shared preferences default values
-    private static final int DEFAULT_ASSET_VERSION = 0;
     private static final int DEFAULT_LAST_APP_VERSION_CODE = 0;
     private static final int DEFAULT_LAST_SLOT = 0;
-    private static final String DEFAULT_LAST_ROM = "";
-    private static final String DEFAULT_LAST_CRC = "";
+    private static final String DEFAULT_CPU_INFO = "";
     
     // ... add more as needed
     
@@ -164,7 +191,6 @@ public class AppData
      */
     public AppData( Context context )
     {
-        hardwareInfo = new HardwareInfo();
         packageName = context.getPackageName();
         
         PackageInfo info;
@@ -199,24 +225,75 @@ public class AppData
         touchscreenLayoutsDir = dataDir + "/skins/gamepads/";
         touchpadLayoutsDir = dataDir + "/skins/touchpads/";
         fontsDir = dataDir + "/skins/fonts/";
+        extractedRomsDir = dataDir + "/roms";
         
         // Files
         mupen64plus_cfg = dataDir + "/mupen64plus.cfg";
         gles2n64_conf = dataDir + "/data/gles2n64.conf";
         error_log = dataDir + "/error.log";
+        startup_trace = dataDir + "/startup_trace.json";
+        startup_trace_history = dataDir + "/startup_trace.ini";
+        mupen64plus_cht = dataDir + "/data/mupen64plus.cht";
+        mupen64plus_cht_idx = dataDir + "/data/mupen64plus.cht.idx";
+        mupen64plus_ini = dataDir + "/data/mupen64plus.ini";
+        mupen64plus_ini_idx = dataDir + "/data/mupen64plus.ini.idx";
+        rom_metadata_cache = dataDir + "/rom_metadata.cache";
         
         // Preference object for persisting app data
         String appDataFilename = packageName + "_appdata";
         mPreferences = context.getSharedPreferences( appDataFilename, Context.MODE_PRIVATE );
         
-        // Record some info in the crash reporter
-        ErrorReporter reporter = ACRA.getErrorReporter();
-        reporter.putCustomData( "CPU Features", hardwareInfo.features );
-        reporter.putCustomData( "CPU Hardware", hardwareInfo.hardware );
-        reporter.putCustomData( "CPU Processor", hardwareInfo.processor );
-        reportMultilineText( reporter, "Axis Report", DeviceUtil.getAxisInfo() );
-        reportMultilineText( reporter, "CPU Report", DeviceUtil.getCpuInfo() );
-        reportMultilineText( reporter, "HID Report", DeviceUtil.getPeripheralInfo() );
+        hardwareInfo = getHardwareInfo();
+    }
+    
+    /**
+     * Gets the hardware info of this device. It is detected the first time this is called in a
+     * process, from the copy persisted by an earlier process if the OS build and app version are
+     * the same, or from /proc/cpuinfo otherwise. The device info is recorded in the crash reporter
+     * at the same time.
+     * 
+     * @return The hardware info.
+     */
+    private HardwareInfo getHardwareInfo()
+    {
+        synchronized( AppData.class )
+        {
+            if( sHardwareInfo != null )
+                return sHardwareInfo;
+            
+            // An OS update can change /proc/cpuinfo; an app update can change how it's parsed
+            String fingerprint = Build.FINGERPRINT + " " + appVersionCode;
+            String cpuReport = getString( KEY_CPU_REPORT, null );
+            if( cpuReport != null
+                    && fingerprint.equals( getString( KEY_HARDWARE_FINGERPRINT, null ) ) )
+            {
+                sHardwareInfo = new HardwareInfo( getString( KEY_CPU_HARDWARE, DEFAULT_CPU_INFO ),
+                        getString( KEY_CPU_PROCESSOR, DEFAULT_CPU_INFO ), getString(
+                                KEY_CPU_FEATURES, DEFAULT_CPU_INFO ) );
+            }
+            else
+            {
+                // The report is persisted already scrubbed, so /proc/cpuinfo isn't read again
+                cpuReport = DeviceUtil.getCpuInfo();
+                sHardwareInfo = HardwareInfo.parse( cpuReport );
+                mPreferences.edit().putString( KEY_HARDWARE_FINGERPRINT, fingerprint )
+                        .putString( KEY_CPU_HARDWARE, sHardwareInfo.hardware )
+                        .putString( KEY_CPU_PROCESSOR, sHardwareInfo.processor )
+                        .putString( KEY_CPU_FEATURES, sHardwareInfo.features )
+                        .putString( KEY_CPU_REPORT, cpuReport ).commit();
+            }
+            
+            // Record some info in the crash reporter
+            ErrorReporter reporter = ACRA.getErrorReporter();
+            reporter.putCustomData( "CPU Features", sHardwareInfo.features );
+            reporter.putCustomData( "CPU Hardware", sHardwareInfo.hardware );
+            reporter.putCustomData( "CPU Processor", sHardwareInfo.processor );
+            reportMultilineText( reporter, "Axis Report", DeviceUtil.getAxisInfo() );
+            reportMultilineText( reporter, "CPU Report", cpuReport );
+            reportMultilineText( reporter, "HID Report", DeviceUtil.getPeripheralInfo() );
+            
+            return sHardwareInfo;
+        }
     }
     
     public static void reportMultilineText( ErrorReporter reporter, String key, String multilineText )
@@ -248,16 +325,6 @@ public class AppData
         return ( new File( storageDir ) ).exists();
     }
     
-    /**
-     * Gets the asset version.
-     * 
-     * @return The asset version.
-     */
-    public int getAssetVersion()
-    {
-        return getInt( KEY_ASSET_VERSION, DEFAULT_ASSET_VERSION );
-    }
-    
     /**
      * Gets the version code when the user last ran the app
      * 
@@ -278,36 +345,6 @@ public class AppData
         return getInt( KEY_LAST_SLOT, DEFAULT_LAST_SLOT );
     }
     
-    /**
-     * Gets the last ROM that the CRC was computed for.
-     * 
-     * @return The last ROM.
-     */
-    public String getLastRom()
-    {
-        return getString( KEY_LAST_ROM, DEFAULT_LAST_ROM );
-    }
-    
-    /**
-     * Gets the last CRC computed.
-     * 
-     * @return The last CRC.
-     */
-    public String getLastCrc()
-    {
-        return getString( KEY_LAST_CRC, DEFAULT_LAST_CRC );
-    }
-    
-    /**
-     * Persists the asset version.
-     * 
-     * @param value The asset version.
-     */
-    public void putAssetVersion( int value )
-    {
-        putInt( KEY_ASSET_VERSION, value );
-    }
-    
     /**
      * Persists the version code when the user last ran the app.
      * 
@@ -328,26 +365,6 @@ public class AppData
         putInt( KEY_LAST_SLOT, value );
     }
     
-    /**
-     * Persists the last ROM that the CRC was computed for.
-     * 
-     * @param value The last ROM.
-     */
-    public void putLastRom( String value )
-    {
-        putString( KEY_LAST_ROM, value );
-    }
-    
-    /**
-     * Persists the last CRC computed.
-     * 
-     * @param value The last CRC.
-     */
-    public void putLastCrc( String value )
-    {
-        putString( KEY_LAST_CRC, value );
-    }
-    
     private int getInt( String key, int defaultValue )
     {
         return mPreferences.getInt( key, defaultValue );
@@ -403,40 +420,54 @@ public class AppData
         public final int hardwareType;
         public final boolean isXperiaPlay;
         
-        public HardwareInfo()
+        /**
+         * Identifies the hardware, features, and processor strings in the contents of
+         * /proc/cpuinfo.
+         * 
+         * @param cpuInfo The contents of /proc/cpuinfo.
+         * @return The hardware info.
+         */
+        public static HardwareInfo parse( String cpuInfo )
         {
-            // Identify the hardware, features, and processor strings
+            String hardware = "";
+            String features = "";
+            String processor = "";
+            
+            // Parse a long string of information from the operating system
+            String hwString = cpuInfo.toLowerCase( Locale.US );
+            String[] lines = hwString.split( "\\r\\n|\\n|\\r" );
+            for( String line : lines )
             {
-                // Temporaries since we can't assign the final fields this way
-                String _hardware = "";
-                String _features = "";
-                String _processor = "";
-                
-                // Parse a long string of information from the operating system
-                String hwString = DeviceUtil.getCpuInfo().toLowerCase( Locale.US );
-                String[] lines = hwString.split( "\\r\\n|\\n|\\r" );
-                for( String line : lines )
+                String[] splitLine = line.split( ":" );
+                if( splitLine.length == 2 )
                 {
-                    String[] splitLine = line.split( ":" );
-                    if( splitLine.length == 2 )
-                    {
-                        String arg = splitLine[0].trim();
-                        String val = splitLine[1].trim();
-                        if( arg.equals( "processor" ) && val.length() > 1 )
-                            _processor = val;
-                        else if( arg.equals( "features" ) )
-                            _features = val;
-                        else if( arg.equals( "hardware" ) )
-                            _hardware = val;
-                    }
+                    String arg = splitLine[0].trim();
+                    String val = splitLine[1].trim();
+                    if( arg.equals( "processor" ) && val.length() > 1 )
+                        processor = val;
+                    else if( arg.equals( "features" ) )
+                        features = val;
+                    else if( arg.equals( "hardware" ) )
+                        hardware = val;
                 }
-                
-                // Assign the final fields
-                hardware = _hardware;
-                processor = _processor;
-                features = _features;
             }
             
+            return new HardwareInfo( hardware, processor, features );
+        }
+        
+        /**
+         * Constructor.
+         * 
+         * @param hardware The hardware string from /proc/cpuinfo, in lower case.
+         * @param processor The processor string from /proc/cpuinfo, in lower case.
+         * @param features The features string from /proc/cpuinfo, in lower case.
+         */
+        public HardwareInfo( String hardware, String processor, String features )
+        {
+            this.hardware = hardware;
+            this.processor = processor;
+            this.features = features;
+            
             // Identify the hardware type from the substrings
             //@formatter:off
             if(        ( hardware.contains( "mapphone" )
@@ -0,0 +1,447 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * A compiled, binary form of the cheat database (mupen64plus.cht), keyed by ROM CRC.
+ * <p>
+ * The index file contains a small header, an open-addressing hash table mapping (CRC1, CRC2) to a
+ * record offset, and one length-prefixed record per game. Looking up a game's cheats therefore
+ * costs one or two table probes and a single small read, with no text parsing.
+ * <p>
+ * The index remembers the size and modification time of the database it was compiled from, and
+ * {@link #open(String, String)} recompiles it automatically whenever the database changes.
+ * 
+ * <pre>
+ * header:  int magic, int version, long sourceLength, long sourceModified, int tableSize, int count
+ * table:   tableSize * ( int crc1, int crc2, int recordOffset )   (offset 0 = empty slot)
+ * records: int length, UTF gameName, int numCheats, numCheats * ( UTF name, UTF codes, UTF notes, UTF options )
+ * </pre>
+ */
+public class CheatIndex
+{
+    private static final int MAGIC = 0x43485831; // "CHX1"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 12;
+    
+    private final String mFilename;
+    private final int mTableSize;
+    
+    /**
+     * The cheats available for one game.
+     */
+    public static class CheatSection
+    {
+        /** The name of the game, as listed in the database. */
+        public final String name;
+        
+        /** The cheats, in the order they are numbered in the database. */
+        public final List<Cheat> cheats;
+        
+        public CheatSection( String name, List<Cheat> cheats )
+        {
+            this.name = name;
+            this.cheats = cheats;
+        }
+    }
+    
+    /**
+     * A single cheat.
+     */
+    public static class Cheat
+    {
+        /** The short title of the cheat, or empty if unavailable. */
+        public final String name;
+        
+        /** The comma-delimited GameShark codes. */
+        public final String codes;
+        
+        /** The descriptive note for this cheat, or empty if unavailable. */
+        public final String notes;
+        
+        /** The comma-delimited options for a multi-choice cheat, or empty for a binary cheat. */
+        public final String options;
+        
+        public Cheat( String name, String codes, String notes, String options )
+        {
+            this.name = name;
+            this.codes = codes;
+            this.notes = notes;
+            this.options = options;
+        }
+    }
+    
+    private CheatIndex( String filename, int tableSize )
+    {
+        mFilename = filename;
+        mTableSize = tableSize;
+    }
+    
+    /**
+     * Opens the cheat index, compiling it first if it is missing or out of date.
+     *
+     * @param chtFilename The cheat database to compile from.
+     * @param indexFilename The compiled index file.
+     * @return The cheat index, or null if it could not be opened or compiled.
+     */
+    public static CheatIndex open( String chtFilename, String indexFilename )
+    {
+        File source = new File( chtFilename );
+        CheatIndex index = openExisting( indexFilename, source.length(), source.lastModified() );
+        if( index == null && compile( chtFilename, indexFilename ) )
+            index = openExisting( indexFilename, source.length(), source.lastModified() );
+        return index;
+    }
+    
+    /**
+     * Looks up the cheats for a ROM.
+     *
+     * @param crc The ROM CRC, formatted as in the ROM header (e.g. "80F41131 384645F6").
+     * @return The cheats for the ROM, or null if the ROM is not in the database.
+     */
+    public CheatSection lookup( String crc )
+    {
+        if( crc == null || crc.length() < 17 )
+            return null;
+        
+        int crc1, crc2;
+        try
+        {
+            crc1 = (int) Long.parseLong( crc.substring( 0, 8 ), 16 );
+            crc2 = (int) Long.parseLong( crc.substring( 9, 17 ), 16 );
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+        
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile( mFilename, "r" );
+            int offset = probe( file, crc1, crc2 );
+            if( offset == 0 )
+                return null;
+            
+            // Read the whole record at once, then decode it from memory
+            file.seek( offset );
+            byte[] record = new byte[file.readInt()];
+            file.readFully( record );
+            return readRecord( new DataInputStream( new ByteArrayInputStream( record ) ) );
+        }
+        catch( IOException e )
+        {
+            Log.e( "CheatIndex", "Unable to read " + mFilename + ": " + e.getMessage() );
+            return null;
+        }
+        finally
+        {
+            close( file );
+        }
+    }
+    
+    /**
+     * Compiles the cheat database into a binary index file.
+     *
+     * @param chtFilename The cheat database to compile from.
+     * @param indexFilename The compiled index file to create or replace.
+     * @return True if successful.
+     */
+    public static boolean compile( String chtFilename, String indexFilename )
+    {
+        File source = new File( chtFilename );
+        if( !source.isFile() )
+        {
+            Log.e( "CheatIndex", "Cheat database " + chtFilename + " does not exist" );
+            return false;
+        }
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+        
+        // Collect one entry per CRC, keeping the first section in file order
+        LazyConfigFile cht = new LazyConfigFile( chtFilename );
+        List<long[]> keys = new ArrayList<long[]>();
+        List<byte[]> records = new ArrayList<byte[]>();
+        for( String title : cht.keySet() )
+        {
+            long[] key = parseTitle( title );
+            if( key == null || contains( keys, key ) )
+                continue;
+            
+            ConfigSection section = cht.get( title );
+            if( section == null )
+                continue;
+            
+            try
+            {
+                keys.add( key );
+                records.add( writeRecord( section ) );
+            }
+            catch( IOException e )
+            {
+                Log.e( "CheatIndex", "Unable to compile section " + title + ": " + e.getMessage() );
+                return false;
+            }
+        }
+        
+        // Size the table for a load factor of at most 1/2
+        int tableSize = 16;
+        while( tableSize < keys.size() * 2 )
+            tableSize <<= 1;
+        
+        int[] table = new int[tableSize * 3];
+        int offset = HEADER_SIZE + tableSize * SLOT_SIZE;
+        for( int i = 0; i < keys.size(); i++ )
+        {
+            int crc1 = (int) keys.get( i )[0];
+            int crc2 = (int) keys.get( i )[1];
+            int slot = hash( crc1, crc2 ) & ( tableSize - 1 );
+            while( table[slot * 3 + 2] != 0 )
+                slot = ( slot + 1 ) & ( tableSize - 1 );
+            
+            table[slot * 3] = crc1;
+            table[slot * 3 + 1] = crc2;
+            table[slot * 3 + 2] = offset;
+            offset += 4 + records.get( i ).length;
+        }
+        
+        // Write to a temporary file, then swap it in so readers never see a partial index
+        File target = new File( indexFilename );
+        File temp = new File( indexFilename + ".tmp" );
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( sourceLength );
+            out.writeLong( sourceModified );
+            out.writeInt( tableSize );
+            out.writeInt( keys.size() );
+            for( int value : table )
+                out.writeInt( value );
+            for( byte[] record : records )
+            {
+                out.writeInt( record.length );
+                out.write( record );
+            }
+            out.close();
+            out = null;
+        }
+        catch( IOException e )
+        {
+            Log.e( "CheatIndex", "Unable to write " + indexFilename + ": " + e.getMessage() );
+            close( out );
+            temp.delete();
+            return false;
+        }
+        
+        if( !temp.renameTo( target ) )
+        {
+            target.delete();
+            if( !temp.renameTo( target ) )
+            {
+                Log.e( "CheatIndex", "Unable to replace " + indexFilename );
+                temp.delete();
+                return false;
+            }
+        }
+        
+        Log.i( "CheatIndex", "Compiled " + keys.size() + " cheat sections into " + indexFilename );
+        return true;
+    }
+    
+    private static CheatIndex openExisting( String indexFilename, long sourceLength,
+            long sourceModified )
+    {
+        if( !new File( indexFilename ).isFile() )
+            return null;
+        
+        RandomAccessFile file = null;
+        try
+        {
+            file = new RandomAccessFile( indexFilename, "r" );
+            byte[] header = new byte[HEADER_SIZE];
+            file.readFully( header );
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream( header ) );
+            if( in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != sourceLength
+                    || in.readLong() != sourceModified )
+            {
+                Log.i( "CheatIndex", "Cheat index " + indexFilename + " is out of date" );
+                return null;
+            }
+            return new CheatIndex( indexFilename, in.readInt() );
+        }
+        catch( IOException e )
+        {
+            Log.w( "CheatIndex", "Unable to open " + indexFilename + ": " + e.getMessage() );
+            return null;
+        }
+        finally
+        {
+            close( file );
+        }
+    }
+    
+    private int probe( RandomAccessFile file, int crc1, int crc2 ) throws IOException
+    {
+        byte[] entry = new byte[SLOT_SIZE];
+        int mask = mTableSize - 1;
+        int slot = hash( crc1, crc2 ) & mask;
+        for( int i = 0; i < mTableSize; i++ )
+        {
+            file.seek( HEADER_SIZE + (long) slot * SLOT_SIZE );
+            file.readFully( entry );
+            DataInputStream in = new DataInputStream( new ByteArrayInputStream( entry ) );
+            int slotCrc1 = in.readInt();
+            int slotCrc2 = in.readInt();
+            int offset = in.readInt();
+            
+            if( offset == 0 )
+                return 0; // Empty slot, not found
+            else if( slotCrc1 == crc1 && slotCrc2 == crc2 )
+                return offset;
+            
+            slot = ( slot + 1 ) & mask;
+        }
+        return 0;
+    }
+    
+    private static int hash( int crc1, int crc2 )
+    {
+        // The CRCs are already well distributed; just mix the two words
+        int h = crc1 * 31 + crc2;
+        return h ^ ( h >>> 16 );
+    }
+    
+    private static long[] parseTitle( String title )
+    {
+        // Cheat section titles look like "80F41131-384645F6-C:4A"
+        if( title.length() < 17 )
+            return null;
+        try
+        {
+            long crc1 = Long.parseLong( title.substring( 0, 8 ), 16 );
+            long crc2 = Long.parseLong( title.substring( 9, 17 ), 16 );
+            return new long[] { crc1, crc2 };
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+    
+    private static boolean contains( List<long[]> keys, long[] key )
+    {
+        // Only runs at compile time; duplicates are rare and the list is small
+        for( long[] k : keys )
+        {
+            if( k[0] == key[0] && k[1] == key[1] )
+                return true;
+        }
+        return false;
+    }
+    
+    private static byte[] writeRecord( ConfigSection section ) throws IOException
+    {
+        List<Cheat> cheats = new ArrayList<Cheat>();
+        for( int i = 0; ; i++ )
+        {
+            // Cheats are numbered consecutively; the first gap ends the list
+            String cheat = section.get( "Cheat" + i );
+            if( TextUtils.isEmpty( cheat ) )
+                break;
+            
+            // The title is quoted and separated from the codes by the first comma
+            String name = "";
+            String codes = cheat;
+            int x = cheat.indexOf( ',' );
+            if( x >= 0 )
+                codes = cheat.substring( x + 1 );
+            if( x >= 3 )
+                name = cheat.substring( 1, x - 1 );
+            
+            cheats.add( new Cheat( name, codes, emptyIfNull( section.get( "Cheat" + i + "_N" ) ),
+                    emptyIfNull( section.get( "Cheat" + i + "_O" ) ) ) );
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+        out.writeUTF( emptyIfNull( section.get( "Name" ) ) );
+        out.writeInt( cheats.size() );
+        for( Cheat c : cheats )
+        {
+            out.writeUTF( c.name );
+            out.writeUTF( c.codes );
+            out.writeUTF( c.notes );
+            out.writeUTF( c.options );
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+    
+    private static CheatSection readRecord( DataInputStream in ) throws IOException
+    {
+        String name = in.readUTF();
+        int count = in.readInt();
+        List<Cheat> cheats = new ArrayList<Cheat>( count );
+        for( int i = 0; i < count; i++ )
+            cheats.add( new Cheat( in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF() ) );
+        return new CheatSection( name, cheats );
+    }
+    
+    private static String emptyIfNull( String s )
+    {
+        return s == null ? "" : s;
+    }
+    
+    private static void close( Closeable closeable )
+    {
+        if( closeable != null )
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch( IOException ignored )
+            {
+            }
+        }
+    }
+}
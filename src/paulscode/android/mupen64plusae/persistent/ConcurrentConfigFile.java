@@ -0,0 +1,284 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * A thread-safe config file, for data that is read and written from several threads.
+ * <p>
+ * The data is held in an immutable {@link Snapshot}. Readers simply take the current snapshot, with
+ * no locking, and always see a consistent version of the file. Writers build a new snapshot that
+ * shares everything except the section being changed, and publish it with a single atomic
+ * compare-and-swap (retrying if another writer got there first). Saving is serialized, and skipped
+ * if the latest snapshot has already been written.
+ * <p>
+ * Comments are not preserved, so this is intended for files the app generates itself (e.g. the
+ * error log). Use {@link ConfigFile} for files that are edited by hand.
+ */
+public class ConcurrentConfigFile
+{
+    /** The title of the implicit section containing any parameters before the first title. */
+    public static final String SECTIONLESS_NAME = "[<sectionless!>]";
+    
+    private final String mFilename;
+    private final AtomicReference<Snapshot> mSnapshot;
+    private final Object mSaveLock = new Object();
+    private long mSavedVersion;
+    
+    /**
+     * An immutable version of the config data.
+     */
+    public static final class Snapshot
+    {
+        private final Map<String, Map<String, String>> mSections;
+        private final long mVersion;
+        
+        private Snapshot( Map<String, Map<String, String>> sections, long version )
+        {
+            mSections = Collections.unmodifiableMap( sections );
+            mVersion = version;
+        }
+        
+        /**
+         * Returns the section titles, in file order.
+         *
+         * @return An unmodifiable set of the section titles.
+         */
+        public Set<String> keySet()
+        {
+            return mSections.keySet();
+        }
+        
+        /**
+         * Returns the parameters of a section.
+         *
+         * @param sectionTitle Title of the section.
+         * @return An unmodifiable map of parameter names to values, or null if not found.
+         */
+        public Map<String, String> get( String sectionTitle )
+        {
+            return mSections.get( sectionTitle );
+        }
+        
+        /**
+         * Looks up the specified parameter under the specified section title.
+         *
+         * @param sectionTitle Title of the section containing the parameter.
+         * @param parameter Name of the parameter.
+         * @return Value of the parameter, or null if not found.
+         */
+        public String get( String sectionTitle, String parameter )
+        {
+            Map<String, String> section = mSections.get( sectionTitle );
+            return section == null ? null : section.get( parameter );
+        }
+        
+        /**
+         * Returns a copy of this snapshot with one parameter changed.
+         *
+         * @return The new snapshot, or this snapshot if nothing would change.
+         */
+        private Snapshot with( String sectionTitle, String parameter, String value )
+        {
+            Map<String, String> section = mSections.get( sectionTitle );
+            String oldValue = section == null ? null : section.get( parameter );
+            if( TextUtils.isEmpty( value ) ? oldValue == null : value.equals( oldValue ) )
+                return this;
+            
+            // Copy only the section being changed; the others are shared
+            LinkedHashMap<String, String> newSection = section == null
+                    ? new LinkedHashMap<String, String>()
+                    : new LinkedHashMap<String, String>( section );
+            if( TextUtils.isEmpty( value ) )
+                newSection.remove( parameter );
+            else
+                newSection.put( parameter, value );
+            
+            LinkedHashMap<String, Map<String, String>> sections = new LinkedHashMap<String, Map<String, String>>(
+                    mSections );
+            sections.put( sectionTitle, Collections.unmodifiableMap( newSection ) );
+            return new Snapshot( sections, mVersion + 1 );
+        }
+    }
+    
+    /**
+     * Constructor: Reads the entire config file into the first snapshot.
+     *
+     * @param filename The config file to read from.
+     */
+    public ConcurrentConfigFile( String filename )
+    {
+        mFilename = filename;
+        
+        LinkedHashMap<String, Map<String, String>> sections = new LinkedHashMap<String, Map<String, String>>();
+        ConfigFile file = new ConfigFile( filename, false );
+        for( String sectionTitle : file.orderedKeySet() )
+        {
+            ConfigSection section = file.get( sectionTitle );
+            LinkedHashMap<String, String> parameters = new LinkedHashMap<String, String>();
+            for( String parameter : section.keySet() )
+                parameters.put( parameter, section.get( parameter ) );
+            sections.put( sectionTitle, Collections.unmodifiableMap( parameters ) );
+        }
+        
+        mSnapshot = new AtomicReference<Snapshot>( new Snapshot( sections, 0 ) );
+        mSavedVersion = 0;
+    }
+    
+    /**
+     * Returns the current version of the data. The snapshot never changes, so it can be read
+     * freely from any thread without locking.
+     *
+     * @return The current snapshot.
+     */
+    public Snapshot snapshot()
+    {
+        return mSnapshot.get();
+    }
+    
+    /**
+     * Looks up the specified parameter in the current snapshot.
+     *
+     * @param sectionTitle Title of the section containing the parameter.
+     * @param parameter Name of the parameter.
+     * @return Value of the parameter, or null if not found.
+     */
+    public String get( String sectionTitle, String parameter )
+    {
+        return mSnapshot.get().get( sectionTitle, parameter );
+    }
+    
+    /**
+     * Assigns the specified value to the specified parameter under the specified section, and
+     * publishes the result as a new snapshot.
+     *
+     * @param sectionTitle Title of the section to contain the parameter.
+     * @param parameter Name of the parameter.
+     * @param value Value to give the parameter, or null or empty to remove it.
+     */
+    public void put( String sectionTitle, String parameter, String value )
+    {
+        while( true )
+        {
+            Snapshot current = mSnapshot.get();
+            Snapshot next = current.with( sectionTitle, parameter, value );
+            if( next == current || mSnapshot.compareAndSet( current, next ) )
+                return;
+            
+            // Another writer published first; apply the change to their version instead
+        }
+    }
+    
+    /**
+     * Saves the current snapshot to the config file, unless it has already been saved. The data
+     * is written to a temporary file which is then renamed over the original.
+     *
+     * @return True if successful (or if there was nothing to save).
+     */
+    public boolean save()
+    {
+        synchronized( mSaveLock )
+        {
+            Snapshot snapshot = mSnapshot.get();
+            if( snapshot.mVersion == mSavedVersion )
+                return true;
+            
+            File file = new File( mFilename );
+            File tmp = new File( mFilename + ".tmp" );
+            try
+            {
+                Writer writer = new BufferedWriter( new OutputStreamWriter(
+                        new FileOutputStream( tmp ) ) );
+                try
+                {
+                    write( snapshot, writer );
+                }
+                finally
+                {
+                    writer.close();
+                }
+            }
+            catch( IOException e )
+            {
+                Log.e( "ConcurrentConfigFile", "IOException creating file " + mFilename
+                        + ", error message: " + e.getMessage() );
+                tmp.delete();
+                return false;
+            }
+            
+            if( !tmp.renameTo( file ) && ( !file.delete() || !tmp.renameTo( file ) ) )
+            {
+                Log.e( "ConcurrentConfigFile", "Error replacing file " + mFilename );
+                tmp.delete();
+                return false;
+            }
+            
+            mSavedVersion = snapshot.mVersion;
+            return true;
+        }
+    }
+    
+    private static void write( Snapshot snapshot, Writer writer ) throws IOException
+    {
+        // The sectionless parameters must come before any section title
+        Map<String, String> sectionless = snapshot.get( SECTIONLESS_NAME );
+        if( sectionless != null )
+            writeParameters( sectionless, writer );
+        
+        for( String sectionTitle : snapshot.keySet() )
+        {
+            if( sectionTitle.equals( SECTIONLESS_NAME ) )
+                continue;
+            
+            writer.write( '[' );
+            writer.write( sectionTitle );
+            writer.write( "]\n" );
+            writeParameters( snapshot.get( sectionTitle ), writer );
+        }
+    }
+    
+    private static void writeParameters( Map<String, String> parameters, Writer writer )
+            throws IOException
+    {
+        for( Map.Entry<String, String> entry : parameters.entrySet() )
+        {
+            writer.write( entry.getKey() );
+            writer.write( '=' );
+            writer.write( entry.getValue() );
+            writer.write( '\n' );
+        }
+    }
+}
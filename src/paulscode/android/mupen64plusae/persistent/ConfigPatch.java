@@ -0,0 +1,387 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * A set of parameter edits that can be applied to a config file without loading it into a
+ * {@link ConfigFile}.
+ * <p>
+ * The edits are applied in a single pass over the raw bytes of the file. Lines that aren't
+ * edited (including comments, blank lines and line endings) are copied byte-for-byte. An edited
+ * parameter keeps everything up to and including its '=' and gets the new value. Parameters that
+ * don't exist yet are added at the end of their section, before any trailing blank lines or
+ * comments, and sections that don't exist yet are added at the end of the file. If no value
+ * actually changes, the file is not written at all.
+ * <p>
+ * Lines are classified with the same rules as {@link ConfigFile}, so the result reads back the
+ * same as if the edits had been made through a ConfigFile and saved.
+ */
+public class ConfigPatch
+{
+    /** The title of the implicit section containing any parameters before the first title. */
+    public static final String SECTIONLESS_NAME = "[<sectionless!>]";
+    
+    // The edits, grouped by section, in the order they were first made
+    private final LinkedHashMap<String, LinkedHashMap<String, String>> mEdits =
+            new LinkedHashMap<String, LinkedHashMap<String, String>>();
+    
+    /**
+     * Assigns the specified value to the specified parameter under the specified section when the
+     * patch is applied. A later edit of the same parameter replaces an earlier one.
+     *
+     * @param sectionTitle Title of the section to contain the parameter.
+     * @param parameter Name of the parameter.
+     * @param value Value to give the parameter, or null or empty to remove it.
+     */
+    public void put( String sectionTitle, String parameter, String value )
+    {
+        LinkedHashMap<String, String> section = mEdits.get( sectionTitle );
+        if( section == null )
+        {
+            section = new LinkedHashMap<String, String>();
+            mEdits.put( sectionTitle, section );
+        }
+        section.put( parameter, value );
+    }
+    
+    /**
+     * Applies the edits to a config file, creating it if it doesn't exist. The file is only
+     * written if at least one value changes; it is written to a temporary file first, which is
+     * then renamed over the original.
+     *
+     * @param filename The config file to patch.
+     * @return True if successful (or if there was nothing to change).
+     */
+    public boolean apply( String filename )
+    {
+        if( TextUtils.isEmpty( filename ) )
+        {
+            Log.e( "ConfigPatch", "Filename not specified in method apply()" );
+            return false;
+        }
+        
+        File file = new File( filename );
+        byte[] data;
+        try
+        {
+            data = file.exists() ? readFully( file ) : new byte[0];
+        }
+        catch( IOException e )
+        {
+            Log.e( "ConfigPatch", "Unable to read " + filename + ": " + e.getMessage() );
+            return false;
+        }
+        
+        Patcher patcher = new Patcher( mEdits, data.length );
+        int lineStart = 0;
+        while( lineStart < data.length )
+        {
+            int lineEnd = lineStart;
+            while( lineEnd < data.length && data[lineEnd] != '\n' )
+                lineEnd++;
+            int next = lineEnd < data.length ? lineEnd + 1 : lineEnd;
+            
+            // Keep a carriage return with the line ending, so CRLF files stay CRLF
+            if( lineEnd > lineStart && data[lineEnd - 1] == '\r' )
+                lineEnd--;
+            
+            patcher.line( data, lineStart, lineEnd, next );
+            lineStart = next;
+        }
+        patcher.finish();
+        
+        // Nothing changed, no need to touch the file
+        if( !patcher.changed )
+            return true;
+        
+        File tmp = new File( filename + ".tmp" );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( tmp );
+            try
+            {
+                patcher.out.writeTo( out );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch( IOException e )
+        {
+            Log.e( "ConfigPatch", "IOException creating file " + filename + ", error message: "
+                    + e.getMessage() );
+            tmp.delete();
+            return false;
+        }
+        
+        // Some filesystems won't rename over an existing file
+        if( !tmp.renameTo( file ) && ( !file.delete() || !tmp.renameTo( file ) ) )
+        {
+            Log.e( "ConfigPatch", "Error replacing file " + filename );
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+    
+    private static byte[] readFully( File file ) throws IOException
+    {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream( file );
+        try
+        {
+            int total = 0;
+            while( total < data.length )
+            {
+                int n = in.read( data, total, data.length - total );
+                if( n < 0 )
+                    break;
+                total += n;
+            }
+            if( total < data.length )
+                throw new IOException( "Unexpected end of file" );
+        }
+        finally
+        {
+            in.close();
+        }
+        return data;
+    }
+    
+    /**
+     * The state of a single pass over a config file.
+     */
+    private static class Patcher
+    {
+        public final ByteArrayOutputStream out;
+        public boolean changed = false;
+        
+        // All the edits, and the ones not yet found in the file
+        private final Map<String, LinkedHashMap<String, String>> mEdits;
+        private final LinkedHashMap<String, LinkedHashMap<String, String>> mPending;
+        
+        // Blank lines and comments at the end of the current section, held back so that new
+        // parameters go before them
+        private final ByteArrayOutputStream mTrailing = new ByteArrayOutputStream();
+        
+        private String mSection = SECTIONLESS_NAME;
+        private int mLastByte = '\n';
+        
+        public Patcher( Map<String, LinkedHashMap<String, String>> edits, int size )
+        {
+            out = new ByteArrayOutputStream( size + 256 );
+            mEdits = edits;
+            mPending = new LinkedHashMap<String, LinkedHashMap<String, String>>();
+            for( Map.Entry<String, LinkedHashMap<String, String>> entry : edits.entrySet() )
+                mPending.put( entry.getKey(),
+                        new LinkedHashMap<String, String>( entry.getValue() ) );
+        }
+        
+        /**
+         * Processes one line of the file.
+         *
+         * @param start Offset of the first byte of the line.
+         * @param end Offset just past the line contents, excluding the line ending.
+         * @param next Offset of the next line.
+         */
+        public void line( byte[] data, int start, int end, int next )
+        {
+            String strLine = new String( data, start, end - start ).trim();
+            if( strLine.length() < 1 || strLine.startsWith( "#" ) || strLine.startsWith( ";" )
+                    || strLine.startsWith( "//" ) )
+            {
+                // A comment or blank line
+                mTrailing.write( data, start, next - start );
+            }
+            else if( strLine.contains( "=" ) )
+            {
+                // A parameter; empty assignments (such as "param=") count too
+                flushTrailing();
+                int x = strLine.indexOf( '=' );
+                String parameter = x < 1 ? "" : strLine.substring( 0, x ).trim();
+                LinkedHashMap<String, String> edits = mEdits.get( mSection );
+                if( parameter.length() < 1 || edits == null || !edits.containsKey( parameter ) )
+                {
+                    write( data, start, next - start );
+                    return;
+                }
+                
+                Map<String, String> pending = mPending.get( mSection );
+                if( pending != null )
+                    pending.remove( parameter );
+                
+                String oldValue = strLine.substring( x + 1 ).trim();
+                String newValue = edits.get( parameter );
+                if( TextUtils.isEmpty( newValue ) )
+                {
+                    // Remove the parameter by dropping its line
+                    if( oldValue.length() > 0 )
+                        changed = true;
+                    else
+                        write( data, start, next - start );
+                }
+                else if( newValue.equals( oldValue ) )
+                {
+                    write( data, start, next - start );
+                }
+                else
+                {
+                    // Keep everything up to the '=', and the original line ending
+                    int equals = start;
+                    while( data[equals] != '=' )
+                        equals++;
+                    write( data, start, equals + 1 - start );
+                    write( newValue.getBytes() );
+                    write( data, end, next - end );
+                    changed = true;
+                }
+            }
+            else
+            {
+                String title = parseTitle( strLine );
+                if( title != null )
+                {
+                    // Finish the current section before writing the next title
+                    endSection();
+                    mSection = title;
+                }
+                else
+                {
+                    flushTrailing();
+                }
+                write( data, start, next - start );
+            }
+        }
+        
+        /**
+         * Adds anything still pending at the end of the file.
+         */
+        public void finish()
+        {
+            endSection();
+            for( Map.Entry<String, LinkedHashMap<String, String>> entry : mPending.entrySet() )
+            {
+                if( !hasValues( entry.getValue() ) )
+                    continue;
+                
+                // A section that doesn't exist yet
+                endLine();
+                if( !entry.getKey().equals( SECTIONLESS_NAME ) )
+                    write( ( "[" + entry.getKey() + "]\n" ).getBytes() );
+                writeParameters( entry.getValue() );
+            }
+            mPending.clear();
+        }
+        
+        private void endSection()
+        {
+            LinkedHashMap<String, String> pending = mPending.remove( mSection );
+            if( pending != null && hasValues( pending ) )
+            {
+                endLine();
+                writeParameters( pending );
+            }
+            flushTrailing();
+        }
+        
+        private void writeParameters( Map<String, String> parameters )
+        {
+            for( Map.Entry<String, String> entry : parameters.entrySet() )
+            {
+                if( !TextUtils.isEmpty( entry.getValue() ) )
+                {
+                    write( ( entry.getKey() + "=" + entry.getValue() + "\n" ).getBytes() );
+                    changed = true;
+                }
+            }
+        }
+        
+        private static boolean hasValues( Map<String, String> parameters )
+        {
+            for( String value : parameters.values() )
+            {
+                if( !TextUtils.isEmpty( value ) )
+                    return true;
+            }
+            return false;
+        }
+        
+        private void flushTrailing()
+        {
+            if( mTrailing.size() > 0 )
+            {
+                write( mTrailing.toByteArray() );
+                mTrailing.reset();
+            }
+        }
+        
+        private void endLine()
+        {
+            // The last line of the file may not have had a line ending
+            if( mLastByte != '\n' )
+                write( new byte[] { '\n' } );
+        }
+        
+        private void write( byte[] bytes )
+        {
+            write( bytes, 0, bytes.length );
+        }
+        
+        private void write( byte[] bytes, int offset, int length )
+        {
+            if( length > 0 )
+            {
+                out.write( bytes, offset, length );
+                mLastByte = bytes[offset + length - 1];
+            }
+        }
+        
+        /**
+         * Extracts a section title, following the same rules as ConfigFile.
+         *
+         * @return The trimmed title, or null if the line is not a valid section title.
+         */
+        private static String parseTitle( String strLine )
+        {
+            if( strLine.length() < 3 || !strLine.contains( "[" ) || !strLine.contains( "]" ) )
+                return null;
+            
+            int x = strLine.indexOf( '[' );
+            int y = strLine.indexOf( ']' );
+            if( y <= x + 1 )
+                return null;
+            
+            return strLine.substring( x + 1, y ).trim();
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * A read-only view of a config file that only parses the sections that are actually requested.
+ * <p>
+ * The constructor makes a single pass over a memory-mapped copy of the file, recording the byte
+ * offset of each section title. Nothing else is decoded. When a section is requested, the file is
+ * re-opened at that offset and only that section is parsed, using the same rules as
+ * {@link ConfigFile}. Parsed sections are cached, so repeated lookups are free.
+ * <p>
+ * Use this instead of {@link ConfigFile} for large files where only a handful of sections are
+ * needed (e.g. the cheat database or the ROM catalog). Use {@link ConfigFile} when the data must
+ * be modified and saved.
+ */
+public class LazyConfigFile
+{
+    /** The title of the implicit section containing any lines before the first title. */
+    public static final String SECTIONLESS_NAME = "[<sectionless!>]";
+    
+    private static final Charset CHARSET = Charset.defaultCharset();
+    
+    private final String mFilename;
+    
+    // Byte offset of the first line after each section title, in file order
+    private final LinkedHashMap<String, Integer> mOffsets = new LinkedHashMap<String, Integer>();
+    
+    // Sections that have already been parsed
+    private final HashMap<String, ConfigSection> mSections = new HashMap<String, ConfigSection>();
+    
+    // Sorted section titles for fast matching
+    private final TitleIndex mTitleIndex;
+    
+    /**
+     * Constructor: Indexes the section titles of the config file without parsing the sections.
+     *
+     * @param filename The config file to read from.
+     */
+    public LazyConfigFile( String filename )
+    {
+        mFilename = filename;
+        buildIndex();
+        mTitleIndex = new TitleIndex( mOffsets.keySet() );
+    }
+    
+    /**
+     * Looks up a config section by its title, parsing it if it hasn't been already.
+     *
+     * @param sectionTitle Title of the section.
+     * @return ConfigSection containing parameters, or null if not found.
+     */
+    public synchronized ConfigSection get( String sectionTitle )
+    {
+        ConfigSection section = mSections.get( sectionTitle );
+        if( section == null )
+        {
+            Integer offset = mOffsets.get( sectionTitle );
+            if( offset == null )
+                return null;
+            
+            section = readSection( sectionTitle, offset );
+            if( section != null )
+                mSections.put( sectionTitle, section );
+        }
+        return section;
+    }
+    
+    /**
+     * Looks up the specified parameter under the specified section title.
+     *
+     * @param sectionTitle Title of the section containing the parameter.
+     * @param parameter Name of the parameter.
+     * @return Value of the parameter, or null if not found.
+     */
+    public String get( String sectionTitle, String parameter )
+    {
+        ConfigSection section = get( sectionTitle );
+        return section == null ? null : section.get( parameter );
+    }
+    
+    /**
+     * Looks up a config section whose title matches the specified regex (not necessarily the only
+     * match). Only the matching section is parsed.
+     * 
+     * @param regex A regular expression to match a section title from.
+     * @return ConfigSection containing parameters for a config section that matches, or null if no
+     *         matches were found.
+     */
+    public ConfigSection match( String regex )
+    {
+        String sectionTitle = mTitleIndex.findMatch( regex );
+        return sectionTitle == null ? null : get( sectionTitle );
+    }
+    
+    /**
+     * Looks up a config section whose title starts with the specified text (not necessarily the
+     * only match). Only the matching section is parsed.
+     * 
+     * @param prefix The beginning of the section title.
+     * @return ConfigSection containing parameters for a config section that matches, or null if no
+     *         matches were found.
+     */
+    public ConfigSection matchPrefix( String prefix )
+    {
+        String sectionTitle = mTitleIndex.findPrefix( prefix );
+        return sectionTitle == null ? null : get( sectionTitle );
+    }
+    
+    /**
+     * Returns a handle to the section titles, in file order.
+     *
+     * @return keyset containing all the config section titles.
+     */
+    public Set<String> keySet()
+    {
+        return mOffsets.keySet();
+    }
+    
+    /**
+     * Scans the file once, recording the offset just past every section title line.
+     */
+    private void buildIndex()
+    {
+        if( TextUtils.isEmpty( mFilename ) )
+            return;
+        
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( mFilename );
+            FileChannel chan = stream.getChannel();
+            MappedByteBuffer buf = chan.map( FileChannel.MapMode.READ_ONLY, 0, chan.size() );
+            
+            // The sectionless part always starts at the beginning of the file
+            mOffsets.put( SECTIONLESS_NAME, 0 );
+            
+            int limit = buf.limit();
+            int lineStart = 0;
+            while( lineStart < limit )
+            {
+                // Find the end of the current line
+                int lineEnd = lineStart;
+                while( lineEnd < limit && buf.get( lineEnd ) != '\n' )
+                    lineEnd++;
+                
+                // Skip leading whitespace; only lines starting with '[' can be titles
+                int pos = lineStart;
+                while( pos < lineEnd && ( buf.get( pos ) & 0xFF ) <= ' ' )
+                    pos++;
+                
+                if( pos < lineEnd && buf.get( pos ) == '[' )
+                {
+                    // Like ConfigFile, a repeated title replaces the earlier section
+                    String title = parseTitle( buf, pos, lineEnd );
+                    if( title != null )
+                        mOffsets.put( title, lineEnd + 1 );
+                }
+                
+                lineStart = lineEnd + 1;
+            }
+        }
+        catch( IOException e )
+        {
+            Log.e( "LazyConfigFile", "Unable to index " + mFilename + ": " + e.getMessage() );
+            mOffsets.clear();
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Extracts the section title from a line, following the same rules as {@link ConfigSection}.
+     *
+     * @return The trimmed title, or null if the line is not a valid section title.
+     */
+    private static String parseTitle( MappedByteBuffer buf, int start, int end )
+    {
+        int close = -1;
+        for( int i = start; i < end; i++ )
+        {
+            byte b = buf.get( i );
+            if( b == '=' )
+                return null; // A parameter whose name starts with a bracket
+            else if( b == ']' && close < 0 )
+                close = i;
+        }
+        
+        if( close <= start + 1 )
+            return null; // Missing or empty brackets
+        
+        ByteBuffer titleBytes = buf.duplicate();
+        titleBytes.limit( close );
+        titleBytes.position( start + 1 );
+        
+        String title = CHARSET.decode( titleBytes ).toString().trim();
+        return title.length() > 0 ? title : null;
+    }
+    
+    /**
+     * Parses a single section, starting at the given byte offset.
+     */
+    private ConfigSection readSection( String sectionTitle, int offset )
+    {
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( mFilename );
+            stream.getChannel().position( offset );
+            BufferedReader br = new BufferedReader( new InputStreamReader( stream, CHARSET ) );
+            
+            // The section reader stops at the next title, so only this section is consumed
+            return new ConfigSection( sectionTitle, br );
+        }
+        catch( IOException e )
+        {
+            Log.e( "LazyConfigFile", "Unable to read section " + sectionTitle + " from "
+                    + mFilename + ": " + e.getMessage() );
+            return null;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,595 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * A compiled, binary form of the ROM catalog (mupen64plus.ini), keyed by MD5 and by ROM CRC.
+ * <p>
+ * The catalog lists every known ROM dump under its MD5, along with its header CRC, good name and
+ * settings. Many entries only name another entry through RefMD5 and inherit its settings; these
+ * references are resolved when the cache is compiled, so every record is complete.
+ * <p>
+ * The cache file is loaded with a single memory map and never parsed. It contains fixed-size
+ * records, two open-addressing hash tables holding record numbers (one keyed by MD5, one by CRC
+ * pair), and a pool of UTF-8 strings. Records sharing a CRC pair are chained through their
+ * nextCrc field. Like {@link CheatIndex}, the cache remembers the size and modification time of
+ * the catalog, and {@link #open(String, String)} recompiles it whenever the catalog changes.
+ * 
+ * <pre>
+ * header:   int magic, int version, long sourceLength, long sourceModified, int count,
+ *           int md5TableSize, int crcTableSize, int stringsOffset
+ * records:  count * ( long md5High, long md5Low, int crc1, int crc2, int goodName, int saveType,
+ *           int nextCrc, byte status, byte players, byte rumble, byte unused )
+ * tables:   md5TableSize * int record, crcTableSize * int record   (record + 1; 0 = empty slot)
+ * strings:  ( short length, UTF-8 bytes )*   (string fields are offsets into this pool)
+ * </pre>
+ */
+public class RomCatalog
+{
+    private static final int MAGIC = 0x524F4D31; // "ROM1"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 40;
+    private static final int RECORD_SIZE = 40;
+    private static final int MAX_REF_DEPTH = 8;
+    
+    private final ByteBuffer mBuffer;
+    private final int mCount;
+    private final int mMd5TableSize;
+    private final int mCrcTableSize;
+    private final int mMd5TableOffset;
+    private final int mCrcTableOffset;
+    private final int mStringsOffset;
+    
+    /**
+     * The catalog entry for one ROM dump.
+     */
+    public static class RomDetail
+    {
+        /** The MD5 of the ROM image, as 32 uppercase hex digits. */
+        public final String md5;
+        
+        /** The ROM CRC, formatted as in the ROM header (e.g. "80F41131 384645F6"). */
+        public final String crc;
+        
+        /** The GoodN64 name of the dump. */
+        public final String goodName;
+        
+        /** The save type (e.g. "Eeprom 4KB"), or empty if unknown. */
+        public final String saveType;
+        
+        /** The emulation status, from 0 (unknown/broken) to 5 (perfect). */
+        public final int status;
+        
+        /** The number of players supported, or 0 if unknown. */
+        public final int players;
+        
+        /** True if the game supports the rumble pak. */
+        public final boolean rumble;
+        
+        public RomDetail( String md5, String crc, String goodName, String saveType, int status,
+                int players, boolean rumble )
+        {
+            this.md5 = md5;
+            this.crc = crc;
+            this.goodName = goodName;
+            this.saveType = saveType;
+            this.status = status;
+            this.players = players;
+            this.rumble = rumble;
+        }
+    }
+    
+    private RomCatalog( ByteBuffer buffer )
+    {
+        mBuffer = buffer;
+        mCount = buffer.getInt( 24 );
+        mMd5TableSize = buffer.getInt( 28 );
+        mCrcTableSize = buffer.getInt( 32 );
+        mStringsOffset = buffer.getInt( 36 );
+        mMd5TableOffset = HEADER_SIZE + mCount * RECORD_SIZE;
+        mCrcTableOffset = mMd5TableOffset + mMd5TableSize * 4;
+    }
+    
+    /**
+     * Opens the ROM catalog cache, compiling it first if it is missing or out of date.
+     *
+     * @param iniFilename The ROM catalog to compile from.
+     * @param cacheFilename The compiled cache file.
+     * @return The ROM catalog, or null if it could not be opened or compiled.
+     */
+    public static RomCatalog open( String iniFilename, String cacheFilename )
+    {
+        File source = new File( iniFilename );
+        RomCatalog catalog = openExisting( cacheFilename, source.length(), source.lastModified() );
+        if( catalog == null && compile( iniFilename, cacheFilename ) )
+            catalog = openExisting( cacheFilename, source.length(), source.lastModified() );
+        return catalog;
+    }
+    
+    /**
+     * Returns the number of ROM dumps in the catalog.
+     *
+     * @return The number of records.
+     */
+    public int size()
+    {
+        return mCount;
+    }
+    
+    /**
+     * Looks up a ROM dump by its MD5.
+     *
+     * @param md5 The MD5 of the ROM image, as 32 hex digits.
+     * @return The catalog entry, or null if the dump is not in the catalog.
+     */
+    public RomDetail lookupByMd5( String md5 )
+    {
+        if( md5 == null || md5.length() != 32 )
+            return null;
+        
+        long high, low;
+        try
+        {
+            high = parseHex64( md5, 0 );
+            low = parseHex64( md5, 16 );
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+        
+        int mask = mMd5TableSize - 1;
+        int slot = hash( high, low ) & mask;
+        for( int i = 0; i < mMd5TableSize; i++ )
+        {
+            int record = mBuffer.getInt( mMd5TableOffset + slot * 4 ) - 1;
+            if( record < 0 )
+                return null; // Empty slot, not found
+            
+            int offset = HEADER_SIZE + record * RECORD_SIZE;
+            if( mBuffer.getLong( offset ) == high && mBuffer.getLong( offset + 8 ) == low )
+                return readRecord( record );
+            
+            slot = ( slot + 1 ) & mask;
+        }
+        return null;
+    }
+    
+    /**
+     * Looks up every ROM dump with the given header CRC. Different dumps of the same game (e.g.
+     * trained or fixed versions) often share a CRC.
+     *
+     * @param crc The ROM CRC, formatted as in the ROM header (e.g. "80F41131 384645F6").
+     * @return The catalog entries, in catalog order; empty if the CRC is not in the catalog.
+     */
+    public List<RomDetail> lookupByCrc( String crc )
+    {
+        List<RomDetail> result = new ArrayList<RomDetail>();
+        long[] key = parseCrc( crc );
+        if( key == null )
+            return result;
+        
+        int crc1 = (int) key[0];
+        int crc2 = (int) key[1];
+        int mask = mCrcTableSize - 1;
+        int slot = hash( crc1, crc2 ) & mask;
+        for( int i = 0; i < mCrcTableSize; i++ )
+        {
+            int record = mBuffer.getInt( mCrcTableOffset + slot * 4 ) - 1;
+            if( record < 0 )
+                return result; // Empty slot, not found
+            
+            int offset = HEADER_SIZE + record * RECORD_SIZE;
+            if( mBuffer.getInt( offset + 16 ) == crc1 && mBuffer.getInt( offset + 20 ) == crc2 )
+            {
+                // Follow the chain of records sharing this CRC
+                while( record >= 0 )
+                {
+                    result.add( readRecord( record ) );
+                    record = mBuffer.getInt( HEADER_SIZE + record * RECORD_SIZE + 32 ) - 1;
+                }
+                return result;
+            }
+            
+            slot = ( slot + 1 ) & mask;
+        }
+        return result;
+    }
+    
+    /**
+     * Compiles the ROM catalog into a binary cache file.
+     *
+     * @param iniFilename The ROM catalog to compile from.
+     * @param cacheFilename The compiled cache file to create or replace.
+     * @return True if successful.
+     */
+    public static boolean compile( String iniFilename, String cacheFilename )
+    {
+        File source = new File( iniFilename );
+        if( !source.isFile() )
+        {
+            Log.e( "RomCatalog", "ROM catalog " + iniFilename + " does not exist" );
+            return false;
+        }
+        long sourceLength = source.length();
+        long sourceModified = source.lastModified();
+        
+        // The catalog is only parsed here, so the compact layout is plenty
+        ConfigFile ini = new ConfigFile( iniFilename, false );
+        
+        // Collect the valid sections, in catalog order
+        List<String> titles = new ArrayList<String>();
+        List<long[]> keys = new ArrayList<long[]>();
+        for( String title : ini.orderedKeySet() )
+        {
+            long[] key = parseMd5( title );
+            long[] crc = parseCrc( ini.get( title, "CRC" ) );
+            if( key != null && crc != null )
+            {
+                titles.add( title );
+                keys.add( new long[] { key[0], key[1], crc[0], crc[1] } );
+            }
+        }
+        int count = titles.size();
+        
+        // Size the tables for a load factor of at most 1/2
+        int md5TableSize = tableSize( count );
+        int crcTableSize = md5TableSize;
+        int[] md5Table = new int[md5TableSize];
+        int[] crcTable = new int[crcTableSize];
+        int[] nextCrc = new int[count];
+        int[] lastCrc = new int[count];
+        for( int i = 0; i < count; i++ )
+        {
+            long[] key = keys.get( i );
+            
+            int slot = hash( key[0], key[1] ) & ( md5TableSize - 1 );
+            while( md5Table[slot] != 0 && !sameMd5( keys.get( md5Table[slot] - 1 ), key ) )
+                slot = ( slot + 1 ) & ( md5TableSize - 1 );
+            md5Table[slot] = i + 1; // Like ConfigFile, a repeated MD5 replaces the earlier entry
+            
+            slot = hash( (int) key[2], (int) key[3] ) & ( crcTableSize - 1 );
+            while( crcTable[slot] != 0 && !sameCrc( keys.get( crcTable[slot] - 1 ), key ) )
+                slot = ( slot + 1 ) & ( crcTableSize - 1 );
+            if( crcTable[slot] == 0 )
+            {
+                crcTable[slot] = i + 1;
+                lastCrc[i] = i;
+            }
+            else
+            {
+                // Append to the end of this CRC's chain, keeping catalog order
+                int head = crcTable[slot] - 1;
+                nextCrc[lastCrc[head]] = i + 1;
+                lastCrc[head] = i;
+            }
+        }
+        
+        // Build the string pool, sharing repeated strings (save types, mostly)
+        int stringsOffset = HEADER_SIZE + count * RECORD_SIZE + ( md5TableSize + crcTableSize ) * 4;
+        ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        DataOutputStream strings = new DataOutputStream( stringBytes );
+        HashMap<String, Integer> stringOffsets = new HashMap<String, Integer>();
+        
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream( count * RECORD_SIZE );
+        DataOutputStream records = new DataOutputStream( recordBytes );
+        try
+        {
+            for( int i = 0; i < count; i++ )
+            {
+                String title = titles.get( i );
+                long[] key = keys.get( i );
+                records.writeLong( key[0] );
+                records.writeLong( key[1] );
+                records.writeInt( (int) key[2] );
+                records.writeInt( (int) key[3] );
+                records.writeInt( intern( emptyIfNull( ini.get( title, "GoodName" ) ), strings,
+                        stringOffsets ) );
+                records.writeInt( intern( emptyIfNull( resolve( ini, title, "SaveType" ) ),
+                        strings, stringOffsets ) );
+                records.writeInt( nextCrc[i] );
+                records.writeByte( parseInt( resolve( ini, title, "Status" ) ) );
+                records.writeByte( parseInt( resolve( ini, title, "Players" ) ) );
+                records.writeByte( "Yes".equals( resolve( ini, title, "Rumble" ) ) ? 1 : 0 );
+                records.writeByte( 0 );
+            }
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomCatalog", "Unable to compile " + iniFilename + ": " + e.getMessage() );
+            return false;
+        }
+        
+        // Write to a temporary file, then swap it in so readers never see a partial cache
+        File target = new File( cacheFilename );
+        File temp = new File( cacheFilename + ".tmp" );
+        DataOutputStream out = null;
+        try
+        {
+            out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( temp ) ) );
+            out.writeInt( MAGIC );
+            out.writeInt( VERSION );
+            out.writeLong( sourceLength );
+            out.writeLong( sourceModified );
+            out.writeInt( count );
+            out.writeInt( md5TableSize );
+            out.writeInt( crcTableSize );
+            out.writeInt( stringsOffset );
+            recordBytes.writeTo( out );
+            for( int value : md5Table )
+                out.writeInt( value );
+            for( int value : crcTable )
+                out.writeInt( value );
+            stringBytes.writeTo( out );
+            out.close();
+            out = null;
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomCatalog", "Unable to write " + cacheFilename + ": " + e.getMessage() );
+            close( out );
+            temp.delete();
+            return false;
+        }
+        
+        if( !temp.renameTo( target ) )
+        {
+            target.delete();
+            if( !temp.renameTo( target ) )
+            {
+                Log.e( "RomCatalog", "Unable to replace " + cacheFilename );
+                temp.delete();
+                return false;
+            }
+        }
+        
+        Log.i( "RomCatalog", "Compiled " + count + " ROM entries into " + cacheFilename );
+        return true;
+    }
+    
+    private static RomCatalog openExisting( String cacheFilename, long sourceLength,
+            long sourceModified )
+    {
+        if( !new File( cacheFilename ).isFile() )
+            return null;
+        
+        FileInputStream stream = null;
+        try
+        {
+            // The mapping stays valid after the stream is closed
+            stream = new FileInputStream( cacheFilename );
+            FileChannel chan = stream.getChannel();
+            ByteBuffer buffer = chan.map( FileChannel.MapMode.READ_ONLY, 0, chan.size() );
+            if( buffer.limit() < HEADER_SIZE || buffer.getInt( 0 ) != MAGIC
+                    || buffer.getInt( 4 ) != VERSION || buffer.getLong( 8 ) != sourceLength
+                    || buffer.getLong( 16 ) != sourceModified )
+            {
+                Log.i( "RomCatalog", "ROM catalog cache " + cacheFilename + " is out of date" );
+                return null;
+            }
+            return new RomCatalog( buffer );
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomCatalog", "Unable to open " + cacheFilename + ": " + e.getMessage() );
+            return null;
+        }
+        finally
+        {
+            close( stream );
+        }
+    }
+    
+    private RomDetail readRecord( int record )
+    {
+        int offset = HEADER_SIZE + record * RECORD_SIZE;
+        String md5 = toHex( mBuffer.getLong( offset ), 16 )
+                + toHex( mBuffer.getLong( offset + 8 ), 16 );
+        String crc = toHex( mBuffer.getInt( offset + 16 ) & 0xFFFFFFFFL, 8 ) + " "
+                + toHex( mBuffer.getInt( offset + 20 ) & 0xFFFFFFFFL, 8 );
+        return new RomDetail( md5, crc, readString( mBuffer.getInt( offset + 24 ) ),
+                readString( mBuffer.getInt( offset + 28 ) ), mBuffer.get( offset + 36 ),
+                mBuffer.get( offset + 37 ), mBuffer.get( offset + 38 ) != 0 );
+    }
+    
+    private String readString( int stringOffset )
+    {
+        int offset = mStringsOffset + stringOffset;
+        byte[] bytes = new byte[mBuffer.getShort( offset ) & 0xFFFF];
+        for( int i = 0; i < bytes.length; i++ )
+            bytes[i] = mBuffer.get( offset + 2 + i );
+        try
+        {
+            return new String( bytes, "UTF-8" );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            return new String( bytes );
+        }
+    }
+    
+    /**
+     * Looks up a parameter, following the RefMD5 chain if the section doesn't define it.
+     */
+    private static String resolve( ConfigFile ini, String title, String parameter )
+    {
+        for( int depth = 0; depth < MAX_REF_DEPTH && title != null; depth++ )
+        {
+            ConfigSection section = ini.get( title );
+            if( section == null )
+                return null;
+            
+            String value = section.get( parameter );
+            if( value != null )
+                return value;
+            
+            String ref = section.get( "RefMD5" );
+            title = ref == null ? null : ref.toUpperCase();
+        }
+        return null;
+    }
+    
+    private static int intern( String value, DataOutputStream strings,
+            HashMap<String, Integer> stringOffsets ) throws IOException
+    {
+        Integer offset = stringOffsets.get( value );
+        if( offset == null )
+        {
+            offset = strings.size();
+            byte[] bytes = value.getBytes( "UTF-8" );
+            strings.writeShort( bytes.length );
+            strings.write( bytes );
+            stringOffsets.put( value, offset );
+        }
+        return offset;
+    }
+    
+    private static int tableSize( int count )
+    {
+        int size = 16;
+        while( size < count * 2 )
+            size <<= 1;
+        return size;
+    }
+    
+    private static int hash( long high, long low )
+    {
+        // MD5s are already well distributed; any bits will do
+        return (int) ( low ^ ( low >>> 32 ) ) ^ (int) high;
+    }
+    
+    private static int hash( int crc1, int crc2 )
+    {
+        // The CRCs are already well distributed; just mix the two words
+        int h = crc1 * 31 + crc2;
+        return h ^ ( h >>> 16 );
+    }
+    
+    private static boolean sameMd5( long[] a, long[] b )
+    {
+        return a[0] == b[0] && a[1] == b[1];
+    }
+    
+    private static boolean sameCrc( long[] a, long[] b )
+    {
+        return a[2] == b[2] && a[3] == b[3];
+    }
+    
+    private static long[] parseMd5( String title )
+    {
+        if( title == null || title.length() != 32 )
+            return null;
+        try
+        {
+            return new long[] { parseHex64( title, 0 ), parseHex64( title, 16 ) };
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+    
+    private static long[] parseCrc( String crc )
+    {
+        // ROM CRCs look like "80F41131 384645F6"
+        if( crc == null || crc.length() < 17 )
+            return null;
+        try
+        {
+            long crc1 = Long.parseLong( crc.substring( 0, 8 ), 16 );
+            long crc2 = Long.parseLong( crc.substring( 9, 17 ), 16 );
+            return new long[] { crc1, crc2 };
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+    
+    private static long parseHex64( String text, int start )
+    {
+        // Long.parseLong can't take 16 hex digits with the top bit set, so parse two halves
+        long high = Long.parseLong( text.substring( start, start + 8 ), 16 );
+        long low = Long.parseLong( text.substring( start + 8, start + 16 ), 16 );
+        return ( high << 32 ) | low;
+    }
+    
+    private static String toHex( long value, int digits )
+    {
+        String hex = Long.toHexString( value ).toUpperCase();
+        StringBuilder builder = new StringBuilder( digits );
+        for( int i = hex.length(); i < digits; i++ )
+            builder.append( '0' );
+        return builder.append( hex ).toString();
+    }
+    
+    private static int parseInt( String value )
+    {
+        if( TextUtils.isEmpty( value ) )
+            return 0;
+        try
+        {
+            return Integer.parseInt( value.trim() );
+        }
+        catch( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+    
+    private static String emptyIfNull( String s )
+    {
+        return s == null ? "" : s;
+    }
+    
+    private static void close( Closeable closeable )
+    {
+        if( closeable != null )
+        {
+            try
+            {
+                closeable.close();
+            }
+            catch( IOException ignored )
+            {
+            }
+        }
+    }
+}
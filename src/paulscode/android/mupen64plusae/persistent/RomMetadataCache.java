@@ -0,0 +1,393 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+
+import paulscode.android.mupen64plusae.util.RomHeader;
+import android.util.Log;
+
+/**
+ * A persistent cache of ROM header data, so that a ROM's header only has to be read (and a zipped
+ * ROM only has to be inflated) once. Entries also hold the MD5 and CRC32 of the whole ROM image
+ * once they are known; these are computed as a side effect of loading the ROM (see
+ * {@link paulscode.android.mupen64plusae.util.RomDigestInputStream}), never by a separate read.
+ * <p>
+ * Entries are keyed by the canonical path of the ROM file, and remember the file's length and
+ * modification time. An entry whose file has changed since it was cached is ignored and re-read on
+ * the next lookup. All entries are held in a hash map; the file on disk is a compact binary dump
+ * of that map, read in full when the cache is opened and rewritten by {@link #save()}.
+ * <p>
+ * The cache is shared by everything in the process that needs ROM metadata, so use
+ * {@link #getInstance(String)} rather than creating separate copies. All methods are thread-safe.
+ */
+public class RomMetadataCache
+{
+    // File layout: header, then one record per entry (see Entry.write)
+    private static final int MAGIC = 0x524D4331; // "RMC1"
+    private static final int VERSION = 3;
+    
+    private static RomMetadataCache sInstance = null;
+    
+    private final String mFilename;
+    private final HashMap<String, Entry> mEntries = new HashMap<String, Entry>();
+    private boolean mDirty = false;
+    
+    /**
+     * The cached header data of a single ROM file.
+     */
+    public static final class Entry
+    {
+        /** The canonical path of the ROM file. */
+        public final String path;
+        
+        /** The length of the ROM file when it was cached. */
+        public final long length;
+        
+        /** The modification time of the ROM file when it was cached. */
+        public final long lastModified;
+        
+        /** The first CRC value in the ROM header. */
+        public final int crc1;
+        
+        /** The second CRC value in the ROM header. */
+        public final int crc2;
+        
+        /** The internal name from the ROM header. */
+        public final String name;
+        
+        /** The byte order of the ROM image, one of the RomHeader.ORDER_* constants. */
+        public final int order;
+        
+        /** The MD5 of the ROM image as upper-case hex, or null if it hasn't been computed. */
+        public final String md5;
+        
+        /** The CRC32 of the whole ROM image, or -1 if it hasn't been computed. */
+        public final long crc32;
+        
+        public Entry( String path, long length, long lastModified, int crc1, int crc2,
+                String name, int order, String md5, long crc32 )
+        {
+            this.path = path;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.crc1 = crc1;
+            this.crc2 = crc2;
+            this.name = name;
+            this.order = order;
+            this.md5 = md5;
+            this.crc32 = crc32;
+        }
+        
+        /**
+         * Returns the CRC values in the format used to look up ROMs and cheats.
+         *
+         * @return Both CRC values as upper-case, zero-padded hex, separated by a space.
+         */
+        public String getCrc()
+        {
+            return String.format( Locale.US, "%08X %08X", crc1, crc2 );
+        }
+        
+        /**
+         * Checks whether the entry still describes a file.
+         *
+         * @param file The ROM file.
+         * @return True if the file has the same length and modification time as when cached.
+         */
+        public boolean isCurrent( File file )
+        {
+            return file.length() == length && file.lastModified() == lastModified;
+        }
+        
+        private void write( DataOutputStream out ) throws IOException
+        {
+            out.writeUTF( path );
+            out.writeLong( length );
+            out.writeLong( lastModified );
+            out.writeInt( crc1 );
+            out.writeInt( crc2 );
+            out.writeByte( order );
+            out.writeUTF( name );
+            out.writeUTF( md5 == null ? "" : md5 );
+            out.writeLong( crc32 );
+        }
+        
+        private static Entry read( DataInputStream in ) throws IOException
+        {
+            String path = in.readUTF();
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            int crc1 = in.readInt();
+            int crc2 = in.readInt();
+            int order = in.readByte();
+            String name = in.readUTF();
+            String md5 = in.readUTF();
+            long crc32 = in.readLong();
+            return new Entry( path, length, lastModified, crc1, crc2, name, order,
+                    md5.length() > 0 ? md5 : null, crc32 );
+        }
+    }
+    
+    /**
+     * Returns the shared cache, loading it from disk the first time.
+     *
+     * @param filename The cache file.
+     * @return The cache for that file.
+     */
+    public static synchronized RomMetadataCache getInstance( String filename )
+    {
+        if( sInstance == null || !sInstance.mFilename.equals( filename ) )
+            sInstance = new RomMetadataCache( filename );
+        return sInstance;
+    }
+    
+    private RomMetadataCache( String filename )
+    {
+        mFilename = filename;
+        load();
+    }
+    
+    /**
+     * Looks up a ROM in the cache, without reading the ROM file itself.
+     *
+     * @param romPath The path to the ROM file.
+     * @return The cached data, or null if the ROM isn't cached or has changed since.
+     */
+    public Entry get( String romPath )
+    {
+        File file = new File( romPath );
+        Entry entry;
+        synchronized( this )
+        {
+            entry = mEntries.get( getKey( file ) );
+        }
+        return entry != null && entry.isCurrent( file ) ? entry : null;
+    }
+    
+    /**
+     * Looks up a ROM in the cache, reading its header and adding it to the cache if necessary.
+     *
+     * @param romPath The path to the ROM file.
+     * @return The data for the ROM, or null if the ROM couldn't be read.
+     */
+    public Entry lookup( String romPath )
+    {
+        Entry entry = get( romPath );
+        if( entry != null )
+            return entry;
+        
+        // Take the file's stamp before reading, so a change during the read invalidates the entry
+        File file = new File( romPath );
+        long length = file.length();
+        long lastModified = file.lastModified();
+        
+        RomHeader header;
+        try
+        {
+            header = RomHeader.read( romPath );
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomMetadataCache", "Unable to read header of " + romPath + ": "
+                    + e.getMessage() );
+            return null;
+        }
+        
+        entry = new Entry( getKey( file ), length, lastModified, header.crc1, header.crc2,
+                header.name, header.order, null, -1 );
+        put( entry );
+        return entry;
+    }
+    
+    /**
+     * Adds an entry to the cache, replacing any entry for the same file.
+     *
+     * @param entry The entry to add.
+     */
+    public synchronized void put( Entry entry )
+    {
+        mEntries.put( entry.path, entry );
+        mDirty = true;
+    }
+    
+    /**
+     * Records the checksums of a ROM image, computed while the ROM was being extracted or loaded.
+     * For a zipped ROM the checksums are those of the ROM inside the ZIP file, not of the ZIP
+     * file itself.
+     *
+     * @param romPath The path to the ROM file (or the ZIP file containing it).
+     * @param md5 The MD5 of the ROM image, as upper-case hex.
+     * @param crc32 The CRC32 of the ROM image.
+     * @return The updated entry, or null if the ROM couldn't be read.
+     */
+    public Entry putDigest( String romPath, String md5, long crc32 )
+    {
+        Entry entry = lookup( romPath );
+        if( entry == null )
+            return null;
+        
+        entry = new Entry( entry.path, entry.length, entry.lastModified, entry.crc1, entry.crc2,
+                entry.name, entry.order, md5, crc32 );
+        put( entry );
+        return entry;
+    }
+    
+    /**
+     * Removes the entries whose files no longer exist.
+     */
+    public synchronized void prune()
+    {
+        for( String path : mEntries.keySet().toArray( new String[mEntries.size()] ) )
+        {
+            if( !new File( path ).exists() )
+            {
+                mEntries.remove( path );
+                mDirty = true;
+            }
+        }
+    }
+    
+    /**
+     * Returns the number of entries in the cache.
+     *
+     * @return The number of cached ROMs.
+     */
+    public synchronized int size()
+    {
+        return mEntries.size();
+    }
+    
+    /**
+     * Writes the cache to disk, if anything has changed since it was loaded or last saved. The
+     * data is written to a temporary file which is then renamed over the original.
+     *
+     * @return True if successful (or if there was nothing to save).
+     */
+    public synchronized boolean save()
+    {
+        if( !mDirty )
+            return true;
+        
+        File file = new File( mFilename );
+        File tmp = new File( mFilename + ".tmp" );
+        try
+        {
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream(
+                    new FileOutputStream( tmp ) ) );
+            try
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeInt( mEntries.size() );
+                for( Entry entry : mEntries.values() )
+                    entry.write( out );
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomMetadataCache", "IOException creating file " + mFilename
+                    + ", error message: " + e.getMessage() );
+            tmp.delete();
+            return false;
+        }
+        
+        // Some filesystems won't rename over an existing file
+        if( !tmp.renameTo( file ) && ( !file.delete() || !tmp.renameTo( file ) ) )
+        {
+            Log.e( "RomMetadataCache", "Error replacing file " + mFilename );
+            tmp.delete();
+            return false;
+        }
+        
+        mDirty = false;
+        return true;
+    }
+    
+    private void load()
+    {
+        File file = new File( mFilename );
+        if( !file.exists() )
+            return;
+        
+        DataInputStream in = null;
+        try
+        {
+            in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+            if( in.readInt() != MAGIC || in.readInt() != VERSION )
+            {
+                // Written by a different version; start over
+                Log.w( "RomMetadataCache", "Discarding incompatible cache " + mFilename );
+                return;
+            }
+            
+            int count = in.readInt();
+            for( int i = 0; i < count; i++ )
+            {
+                Entry entry = Entry.read( in );
+                mEntries.put( entry.path, entry );
+            }
+        }
+        catch( IOException e )
+        {
+            Log.e( "RomMetadataCache", "Unable to read " + mFilename + ": " + e.getMessage() );
+            mEntries.clear();
+        }
+        finally
+        {
+            if( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static String getKey( File file )
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return file.getAbsolutePath();
+        }
+    }
+}
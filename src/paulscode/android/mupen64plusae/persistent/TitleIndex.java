@@ -0,0 +1,149 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A sorted array of config section titles, used to look up sections by prefix or by regex without
+ * scanning every title.
+ * <p>
+ * Prefix lookups are a binary search. Regex lookups first derive the literal prefix that every
+ * match must start with (e.g. "80F41131" for "^80F41131.384645F6.*"), binary search for the range
+ * of titles sharing that prefix, and only run the regex on that range. Compiled patterns are
+ * cached, so repeated lookups with the same regex don't recompile it.
+ */
+class TitleIndex
+{
+    private static final String REGEX_METACHARS = "\\[](){}.*+?^$|";
+    private static final String REGEX_QUANTIFIERS = "?*{";
+    private static final int MAX_CACHED_PATTERNS = 16;
+    
+    // Compiled patterns, shared by all indexes
+    private static final HashMap<String, Pattern> sPatterns = new HashMap<String, Pattern>();
+    
+    // The section titles, in natural sort order
+    private final String[] mTitles;
+    
+    /**
+     * Constructor: Sorts the given section titles.
+     *
+     * @param titles The section titles to index.
+     */
+    public TitleIndex( Collection<String> titles )
+    {
+        mTitles = titles.toArray( new String[titles.size()] );
+        Arrays.sort( mTitles );
+    }
+    
+    /**
+     * Finds the first title (in sort order) that starts with the given prefix.
+     *
+     * @param prefix The prefix to look for.
+     * @return The matching title, or null if none was found.
+     */
+    public String findPrefix( String prefix )
+    {
+        int i = lowerBound( prefix );
+        if( i < mTitles.length && mTitles[i].startsWith( prefix ) )
+            return mTitles[i];
+        return null;
+    }
+    
+    /**
+     * Finds the first title (in sort order) that entirely matches the given regex, with the same
+     * semantics as {@link String#matches(String)}.
+     *
+     * @param regex The regular expression to match.
+     * @return The matching title, or null if none was found.
+     */
+    public String findMatch( String regex )
+    {
+        Pattern pattern = compile( regex );
+        String prefix = requiredPrefix( regex );
+        for( int i = lowerBound( prefix ); i < mTitles.length && mTitles[i].startsWith( prefix ); i++ )
+        {
+            if( pattern.matcher( mTitles[i] ).matches() )
+                return mTitles[i];
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the index of the first title that is not less than the key.
+     */
+    private int lowerBound( String key )
+    {
+        int lo = 0;
+        int hi = mTitles.length;
+        while( lo < hi )
+        {
+            int mid = ( lo + hi ) >>> 1;
+            if( mTitles[mid].compareTo( key ) < 0 )
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+    
+    /**
+     * Returns the literal text that any string entirely matching the regex must start with. This
+     * is conservative: an empty string is returned whenever the prefix isn't obvious.
+     */
+    static String requiredPrefix( String regex )
+    {
+        // Alternation could allow a match that doesn't start with the leading literal
+        if( regex.indexOf( '|' ) >= 0 )
+            return "";
+        
+        int start = regex.startsWith( "^" ) ? 1 : 0;
+        int end = start;
+        while( end < regex.length() && REGEX_METACHARS.indexOf( regex.charAt( end ) ) < 0 )
+            end++;
+        
+        // A quantifier after the last literal character makes that character optional
+        if( end > start && end < regex.length()
+                && REGEX_QUANTIFIERS.indexOf( regex.charAt( end ) ) >= 0 )
+            end--;
+        
+        return regex.substring( start, end );
+    }
+    
+    private static Pattern compile( String regex )
+    {
+        synchronized( sPatterns )
+        {
+            Pattern pattern = sPatterns.get( regex );
+            if( pattern == null )
+            {
+                if( sPatterns.size() >= MAX_CACHED_PATTERNS )
+                    sPatterns.clear();
+                pattern = Pattern.compile( regex );
+                sPatterns.put( regex, pattern );
+            }
+            return pattern;
+        }
+    }
+}
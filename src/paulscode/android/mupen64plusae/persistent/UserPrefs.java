@@ -86,6 +86,12 @@ public class UserPrefs
     /** The filename of the ROM selected by the user. */
     public final String selectedGame;
     
+    /** The folder scanned for the ROM library. */
+    public final String romLibraryDir;
+    
+    /** The maximum total size of the ROMs extracted from ZIP files, in bytes. */
+    public final long romCacheQuota;
+    
     /** The filename of the auto-saved session of the ROM selected by the user. */
     public final String selectedGameAutoSavefile;
     
@@ -350,6 +356,8 @@ public class UserPrefs
         
         // Files
         selectedGame = mPreferences.getString( "pathSelectedGame", "" );
+        romLibraryDir = mPreferences.getString( "pathRomLibrary", "" );
+        romCacheQuota = getSafeInt( mPreferences, "romCacheSize", 256 ) * 1024L * 1024L;
         gameSaveDir = mPreferences.getString( "pathGameSaves", "" );
         slotSaveDir = gameSaveDir + "/SlotSaves";
         autoSaveDir = gameSaveDir + "/AutoSaves";
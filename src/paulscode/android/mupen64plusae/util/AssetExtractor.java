@@ -24,154 +24,266 @@
 package paulscode.android.mupen64plusae.util;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.res.AssetManager;
 import android.util.Log;
 
+/**
+ * Extracts the app's assets from the APK to storage.
+ * <p>
+ * The work is pipelined: the calling thread walks the bundled manifest and decides which files
+ * need extracting, handing each one to a pool of worker threads as soon as it is found. The
+ * workers copy the files through the shared buffers of {@link StreamUtil}; while one worker
+ * inflates a file, another can be writing. Beyond a few workers the storage is the bottleneck, so
+ * the pool has one worker per core, capped at four.
+ */
 public class AssetExtractor
 {
+    /** The name of the record of the extracted assets, kept in the destination directory. */
+    private static final String INSTALLED_MANIFEST = ".assets.manifest";
+    
+    // Beyond this many workers the storage, not the CPU, is the bottleneck
+    private static final int MAX_THREADS = 4;
+    
     public interface OnExtractionProgressListener
     {
-        public void onExtractionProgress( String nextFileExtracted );
+        /**
+         * Called before each file is extracted. May be called from any thread.
+         * 
+         * @param nextFileExtracted The destination path of the file.
+         * @param bytesDone The number of bytes extracted or found up to date so far.
+         * @param totalBytes The total size of the assets, in bytes.
+         */
+        public void onExtractionProgress( String nextFileExtracted, long bytesDone,
+                long totalBytes );
     }
     
-    public static boolean extractAssets( AssetManager assetManager, String srcPath, String dstPath,
-            OnExtractionProgressListener onProgress )
+    /**
+     * Brings the extracted assets up to date with the assets in the APK, extracting only the files
+     * that are new or have changed since they were last extracted.
+     * <p>
+     * The bundled manifest lists the MD5 of every asset; a copy of it in the destination directory
+     * records what was extracted. A file is extracted if it is missing, or if its MD5 in the
+     * bundled manifest differs from the one recorded when it was extracted. Files that were
+     * extracted before this record existed are hashed once to find out. Files that are no longer
+     * part of the app are deleted, but files that were never extracted from the APK (saves, user
+     * configuration, ...) are never touched.
+     * <p>
+     * Assets that {@link AssetSource} reads straight from the APK are not extracted. Unmodified
+     * copies of them left by older versions are deleted; modified ones are kept, and from then on
+     * treated as the user's files.
+     * <p>
+     * Progress is measured in bytes against the total size of the bundled assets; files that are
+     * already up to date count as done.
+     * 
+     * @param assetManager The asset manager of the app.
+     * @param srcPath The asset directory to extract.
+     * @param dstPath The directory to extract to.
+     * @param manifestPath The asset path of the manifest of srcPath.
+     * @param onProgress The listener to notify before each file is extracted, or null.
+     * @return The paths (relative to dstPath) of the files extracted, or null if any failed.
+     */
+    public static List<String> syncAssets( final AssetManager assetManager, final String srcPath,
+            String dstPath, String manifestPath, final OnExtractionProgressListener onProgress )
     {
-        boolean result = true;
+        long startTime = System.nanoTime();
+        AssetManifest bundled;
+        try
+        {
+            bundled = AssetManifest.read( assetManager.open( manifestPath ) );
+        }
+        catch( IOException e )
+        {
+            Log.e( "AssetExtractor", "Failed to read asset manifest " + manifestPath, e );
+            return null;
+        }
         
-        if( srcPath.startsWith( "/" ) )
-            srcPath = srcPath.substring( 1 );
+        File installedFile = new File( dstPath, INSTALLED_MANIFEST );
+        AssetManifest installed = new AssetManifest();
+        boolean hasRecord = false;
+        if( installedFile.exists() )
+        {
+            try
+            {
+                installed = AssetManifest.read( new FileInputStream( installedFile ) );
+                hasRecord = true;
+            }
+            catch( IOException e )
+            {
+                Log.w( "AssetExtractor", "Failed to read " + installedFile
+                        + ", checking all assets" );
+            }
+        }
         
-        String[] srcSubPaths = getAssetList( assetManager, srcPath );
+        // Remove the files we extracted before that are no longer part of the app, or that are
+        // now read from the APK
+        for( AssetManifest.Entry entry : installed.getEntries() )
+        {
+            File file = new File( dstPath, entry.path );
+            AssetManifest.Entry latest = bundled.get( entry.path );
+            if( latest == null )
+                file.delete();
+            else if( AssetSource.isInPlace( entry.path ) && latest.md5.equals( md5OrNull( file ) ) )
+                file.delete();
+        }
         
-        if( srcSubPaths.length > 0 )
+        // Versions from before the record also left copies of the assets now read from the APK;
+        // find the unmodified ones by hashing them. Once the record is written this isn't needed.
+        if( !hasRecord )
         {
-            // srcPath is a directory
-            
-            // Ensure the parent directories exist
-            new File( dstPath ).mkdirs();
-            
-            // Recurse into each subdirectory
-            for( String srcSubPath : srcSubPaths )
+            for( AssetManifest.Entry entry : bundled.getEntries() )
             {
-                String suffix = "/" + srcSubPath;
-                if( !extractAssets( assetManager, srcPath + suffix, dstPath + suffix, onProgress ) )
-                    return false;
+                File file = new File( dstPath, entry.path );
+                if( AssetSource.isInPlace( entry.path ) && file.isFile()
+                        && entry.md5.equals( md5OrNull( file ) ) )
+                    file.delete();
             }
         }
-        else
+        
+        long totalBytes = 0;
+        for( AssetManifest.Entry entry : bundled.getEntries() )
         {
-            // srcPath is a file
-            
-            // Call the progress listener before extracting
-            if( onProgress != null )
-                onProgress.onExtractionProgress( dstPath );
-            
-            // IO objects, initialize null to eliminate lint error
-            OutputStream out = null;
-            InputStream in = null;
+            if( !AssetSource.isInPlace( entry.path ) )
+                totalBytes += entry.size;
+        }
+        final long total = totalBytes;
+        
+        final AssetManifest current = new AssetManifest();
+        final List<String> extracted = Collections.synchronizedList( new ArrayList<String>() );
+        final AtomicLong bytesDone = new AtomicLong( 0 );
+        final AtomicBoolean failed = new AtomicBoolean( false );
+        ExecutorService executor = newExecutor();
+        
+        // Find the files that are missing or out of date, and queue them for the workers
+        for( final AssetManifest.Entry entry : bundled.getEntries() )
+        {
+            if( AssetSource.isInPlace( entry.path ) )
+                continue;
             
-            // Extract the file
-            try
+            final File file = new File( dstPath, entry.path );
+            AssetManifest.Entry previous = installed.get( entry.path );
+            if( file.isFile()
+                    && entry.md5.equals( previous != null ? previous.md5 : md5OrNull( file ) ) )
             {
-                out = new FileOutputStream( dstPath );
-                in = assetManager.open( srcPath );
-                byte[] buffer = new byte[1024];
-                int read;
-                
-                while( ( read = in.read( buffer ) ) != -1 )
+                synchronized( current )
                 {
-                    out.write( buffer, 0, read );
+                    current.put( entry );
                 }
-                out.flush();
-            }
-            catch( FileNotFoundException e )
-            {
-                Log.e( "AssetExtractor", "Failed to open output file " + dstPath, e );
-                result = false;
-            }
-            catch( IOException e )
-            {
-                Log.e( "AssetExtractor", "Failed to extract asset " + srcPath + " to " + dstPath, e );
-                result = false;
+                bytesDone.addAndGet( entry.size );
+                continue;
             }
-            finally
+            
+            // Create the directories here, so the workers don't race to create them
+            file.getParentFile().mkdirs();
+            executor.execute( new Runnable()
             {
-                if( out != null )
-                {
-                    try
-                    {
-                        out.close();
-                    }
-                    catch( IOException e )
-                    {
-                        Log.e( "AssetExtractor", "Failed to close output file " + dstPath, e );
-                        result = false;
-                    }
-                }
-                if( in != null )
+                @Override
+                public void run()
                 {
+                    if( onProgress != null )
+                        onProgress.onExtractionProgress( file.getPath(), bytesDone.get(), total );
+                    
                     try
                     {
-                        in.close();
+                        StreamUtil.copy( assetManager.open( srcPath + "/" + entry.path ), file );
+                        synchronized( current )
+                        {
+                            current.put( entry );
+                        }
+                        extracted.add( entry.path );
                     }
                     catch( IOException e )
                     {
-                        Log.e( "AssetExtractor", "Failed to close asset " + srcPath, e );
-                        result = false;
+                        Log.e( "AssetExtractor", "Failed to extract asset " + entry.path + " to "
+                                + file, e );
+                        failed.set( true );
                     }
+                    bytesDone.addAndGet( entry.size );
                 }
-            }
+            } );
         }
         
-        return result;
-    }
-    
-    public static int countAssets( AssetManager assetManager, String srcPath )
-    {
-        int count = 0;
-        
-        // TODO: This function takes a surprisingly long time to complete.
-        if( srcPath.startsWith( "/" ) )
-            srcPath = srcPath.substring( 1 );
+        // Wait for the workers to finish
+        executor.shutdown();
+        try
+        {
+            while( !executor.awaitTermination( 1, TimeUnit.SECONDS ) )
+            {
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Log.w( "AssetExtractor", "Interrupted while waiting for workers" );
+            executor.shutdownNow();
+            failed.set( true );
+        }
         
-        String[] srcSubPaths = getAssetList( assetManager, srcPath );
-        if( srcSubPaths.length > 0 )
+        // Record what is on disk now, even after a failure, so the next attempt can pick up there
+        try
         {
-            // srcPath is a directory
-            for( String srcSubPath : srcSubPaths )
+            synchronized( current )
             {
-                count += countAssets( assetManager, srcPath + "/" + srcSubPath );
+                current.write( installedFile );
             }
         }
-        else
+        catch( IOException e )
         {
-            // srcPath is a file
-            count++;
+            Log.e( "AssetExtractor", "Failed to write " + installedFile, e );
+            failed.set( true );
         }
         
-        return count;
+        Log.i( "AssetExtractor", "Extracted " + extracted.size() + " of " + current.size()
+                + " assets in " + ( System.nanoTime() - startTime ) / 1000000 + " ms" );
+        return failed.get() ? null : new ArrayList<String>( extracted );
     }
     
-    private static String[] getAssetList( AssetManager assetManager, String srcPath )
+    /**
+     * Forgets what was extracted, so that the next {@link #syncAssets} call checks every file on
+     * disk against the bundled manifest and replaces any that are missing or modified.
+     * 
+     * @param dstPath The directory the assets were extracted to.
+     */
+    public static void invalidateAssets( String dstPath )
+    {
+        new File( dstPath, INSTALLED_MANIFEST ).delete();
+    }
+    
+    private static ExecutorService newExecutor()
+    {
+        int threads = Math.min( MAX_THREADS, Runtime.getRuntime().availableProcessors() );
+        return Executors.newFixedThreadPool( Math.max( 1, threads ), new ThreadFactory()
+        {
+            private final AtomicInteger mCount = new AtomicInteger( 0 );
+            
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                return new Thread( r, "AssetExtractor" + mCount.incrementAndGet() );
+            }
+        } );
+    }
+    
+    private static String md5OrNull( File file )
     {
-        String[] srcSubPaths = null;
-        
         try
         {
-            srcSubPaths = assetManager.list( srcPath );
+            return AssetManifest.md5( file );
         }
         catch( IOException e )
         {
-            Log.w( "AssetExtractor", "Failed to get asset file list." );
+            return null;
         }
-        
-        return srcSubPaths;
     }
 }
@@ -0,0 +1,262 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.TreeMap;
+
+/**
+ * A list of asset files with their sizes and MD5s.
+ * <p>
+ * The manifest of the bundled assets is generated at build time (see tools/AssetManifestTool)
+ * and packaged next to the assets. A copy of it is kept with the extracted assets, recording what
+ * was extracted, so that {@link AssetExtractor#syncAssets} only has to extract what has changed.
+ * <p>
+ * The file format is one line per file, sorted by path: the MD5 as lower-case hex, the size in
+ * bytes, and the path relative to the asset directory, separated by single spaces. Lines starting
+ * with '#' are comments.
+ * <p>
+ * This class uses no Android APIs, so that the build can use it too.
+ */
+public final class AssetManifest
+{
+    /**
+     * A file in the manifest.
+     */
+    public static final class Entry
+    {
+        /** The path of the file, relative to the asset directory, with '/' separators. */
+        public final String path;
+        
+        /** The size of the file, in bytes. */
+        public final long size;
+        
+        /** The MD5 of the file, as lower-case hex. */
+        public final String md5;
+        
+        public Entry( String path, long size, String md5 )
+        {
+            this.path = path;
+            this.size = size;
+            this.md5 = md5;
+        }
+    }
+    
+    private final TreeMap<String, Entry> mEntries = new TreeMap<String, Entry>();
+    
+    /**
+     * Reads a manifest. The stream is closed afterwards.
+     *
+     * @param in The stream to read.
+     * @return The manifest.
+     * @throws IOException If the stream can't be read or isn't a manifest.
+     */
+    public static AssetManifest read( InputStream in ) throws IOException
+    {
+        AssetManifest manifest = new AssetManifest();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( in, "UTF-8" ) );
+        try
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                if( line.length() == 0 || line.startsWith( "#" ) )
+                    continue;
+                
+                // The path goes last, since it may contain spaces
+                int first = line.indexOf( ' ' );
+                int second = first < 0 ? -1 : line.indexOf( ' ', first + 1 );
+                if( second < 0 )
+                    throw new IOException( "Invalid manifest line '" + line + "'" );
+                
+                try
+                {
+                    long size = Long.parseLong( line.substring( first + 1, second ) );
+                    manifest.put( new Entry( line.substring( second + 1 ), size, line.substring(
+                            0, first ) ) );
+                }
+                catch( NumberFormatException e )
+                {
+                    throw new IOException( "Invalid manifest line '" + line + "'" );
+                }
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return manifest;
+    }
+    
+    /**
+     * Builds the manifest of a directory tree, hashing every file in it.
+     *
+     * @param dir The directory.
+     * @return The manifest of all the files in the directory and its subdirectories.
+     * @throws IOException If any file can't be read.
+     */
+    public static AssetManifest scan( File dir ) throws IOException
+    {
+        AssetManifest manifest = new AssetManifest();
+        manifest.scan( dir, "" );
+        return manifest;
+    }
+    
+    /**
+     * Computes the MD5 of a file.
+     *
+     * @param file The file.
+     * @return The MD5 as lower-case hex.
+     * @throws IOException If the file can't be read.
+     */
+    public static String md5( File file ) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance( "MD5" );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            throw new IOException( "MD5 not available" );
+        }
+        
+        InputStream in = new FileInputStream( file );
+        try
+        {
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while( ( n = in.read( buffer ) ) >= 0 )
+                digest.update( buffer, 0, n );
+        }
+        finally
+        {
+            in.close();
+        }
+        
+        StringBuilder hex = new StringBuilder();
+        for( byte b : digest.digest() )
+            hex.append( String.format( Locale.US, "%02x", b ) );
+        return hex.toString();
+    }
+    
+    /**
+     * Looks up a file.
+     *
+     * @param path The path of the file, relative to the asset directory.
+     * @return The entry for the file, or null if it isn't in the manifest.
+     */
+    public Entry get( String path )
+    {
+        return mEntries.get( path );
+    }
+    
+    /**
+     * Adds a file, replacing any entry with the same path.
+     *
+     * @param entry The entry to add.
+     */
+    public void put( Entry entry )
+    {
+        mEntries.put( entry.path, entry );
+    }
+    
+    /**
+     * Returns all the files, sorted by path.
+     *
+     * @return The entries of the manifest.
+     */
+    public Collection<Entry> getEntries()
+    {
+        return mEntries.values();
+    }
+    
+    /**
+     * Returns the number of files.
+     *
+     * @return The number of entries.
+     */
+    public int size()
+    {
+        return mEntries.size();
+    }
+    
+    /**
+     * Writes the manifest to a file. The data is written to a temporary file which is then renamed
+     * over the original.
+     *
+     * @param file The file to create or replace.
+     * @throws IOException If the file can't be written.
+     */
+    public void write( File file ) throws IOException
+    {
+        File tmp = new File( file.getPath() + ".tmp" );
+        Writer writer = new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" );
+        try
+        {
+            writer.write( "# Asset manifest: md5 size path\n" );
+            for( Entry entry : mEntries.values() )
+                writer.write( entry.md5 + " " + entry.size + " " + entry.path + "\n" );
+        }
+        finally
+        {
+            writer.close();
+        }
+        
+        // Some filesystems won't rename over an existing file
+        if( !tmp.renameTo( file ) && ( !file.delete() || !tmp.renameTo( file ) ) )
+        {
+            tmp.delete();
+            throw new IOException( "Unable to replace " + file.getPath() );
+        }
+    }
+    
+    private void scan( File dir, String prefix ) throws IOException
+    {
+        File[] files = dir.listFiles();
+        if( files == null )
+            throw new IOException( "Unable to list " + dir.getPath() );
+        
+        for( File file : files )
+        {
+            // The Android packager leaves hidden files out of the APK
+            if( file.getName().startsWith( "." ) )
+                continue;
+            
+            if( file.isDirectory() )
+                scan( file, prefix + file.getName() + "/" );
+            else
+                put( new Entry( prefix + file.getName(), file.length(), md5( file ) ) );
+        }
+    }
+}
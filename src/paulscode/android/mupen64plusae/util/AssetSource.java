@@ -0,0 +1,118 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.content.res.AssetManager;
+
+/**
+ * Opens the app's data files, wherever they live.
+ * <p>
+ * Most assets are extracted to the data directory by {@link AssetExtractor}, but read-only ones
+ * (the skins) are left in the APK and read from there. Callers keep using paths in the data
+ * directory: a file that exists on disk is always read from disk, so skins the user has
+ * customised (or copied over the bundled ones) take precedence, and anything else under an
+ * in-place directory is read from the matching asset. Assets are opened with
+ * {@link AssetManager#ACCESS_BUFFER}, which maps uncompressed assets (such as the PNGs, which
+ * aapt stores uncompressed) straight from the APK instead of copying them.
+ * <p>
+ * Until {@link #initialize(AssetManager, String, String)} is called, everything is read from disk.
+ */
+public final class AssetSource
+{
+    /** The directories (relative to the asset directory) whose files are read from the APK. */
+    private static final String[] IN_PLACE_DIRS = { "skins/" };
+    
+    private static volatile AssetManager sAssetManager = null;
+    private static volatile String sDataDir = null;
+    private static volatile String sAssetDir = null;
+    
+    private AssetSource()
+    {
+    }
+    
+    /**
+     * Sets where the assets come from.
+     * 
+     * @param assetManager The asset manager of the app.
+     * @param dataDir The directory the assets are extracted to.
+     * @param assetDir The asset directory that is extracted to dataDir.
+     */
+    public static void initialize( AssetManager assetManager, String dataDir, String assetDir )
+    {
+        sDataDir = dataDir;
+        sAssetDir = assetDir;
+        sAssetManager = assetManager;
+    }
+    
+    /**
+     * Checks whether an asset is read from the APK rather than extracted.
+     * 
+     * @param path The path of the asset, relative to the asset directory.
+     * @return True if the asset is not extracted.
+     */
+    public static boolean isInPlace( String path )
+    {
+        for( String dir : IN_PLACE_DIRS )
+        {
+            if( path.startsWith( dir ) )
+                return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Opens a data file, from disk if it exists there and from the APK otherwise.
+     * 
+     * @param filename The path of the file.
+     * @return A stream of the file's contents. The caller must close it.
+     * @throws FileNotFoundException If the file is neither on disk nor in the APK.
+     * @throws IOException If the file can't be opened.
+     */
+    public static InputStream open( String filename ) throws IOException
+    {
+        File file = new File( filename );
+        if( file.isFile() )
+            return new FileInputStream( file );
+        
+        String asset = getAssetPath( filename );
+        if( asset == null )
+            throw new FileNotFoundException( filename );
+        return sAssetManager.open( asset, AssetManager.ACCESS_BUFFER );
+    }
+    
+    // Maps a path in the data directory to the asset it is read from, or null if it isn't one
+    private static String getAssetPath( String filename )
+    {
+        String dataDir = sDataDir;
+        if( sAssetManager == null || dataDir == null || !filename.startsWith( dataDir + "/" ) )
+            return null;
+        
+        // Asset paths have no redundant separators, but skin paths are built with a few
+        String path = filename.substring( dataDir.length() + 1 ).replaceAll( "/+", "/" );
+        return isInPlace( path ) ? sAssetDir + "/" + path : null;
+    }
+}
@@ -32,8 +32,10 @@ import static android.view.MotionEvent.ACTION_POINTER_UP;
 import static android.view.MotionEvent.ACTION_SCROLL;
 import static android.view.MotionEvent.ACTION_UP;
 
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.regex.Pattern;
@@ -43,40 +45,54 @@ import paulscode.android.mupen64plusae.persistent.AppData;
 import android.annotation.TargetApi;
 import android.os.Build;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.InputDevice;
 import android.view.InputDevice.MotionRange;
 import android.view.MotionEvent;
 
 public class DeviceUtil
 {
+    /** The hardware information, or null until it is first read. */
+    private static String sCpuInfo = null;
+    
     /**
-     * Gets the hardware information from /proc/cpuinfo.
+     * Gets the hardware information from /proc/cpuinfo. The file is read once per process; it
+     * doesn't change while the device is running.
      * 
      * @return The hardware string.
      */
-    public static String getCpuInfo()
+    public static synchronized String getCpuInfo()
     {
-        // From http://android-er.blogspot.com/2009/09/read-android-cpu-info.html
-        String result = "";
+        if( sCpuInfo != null )
+            return sCpuInfo;
+        
+        // Read the file directly, rather than forking a process to cat it
+        StringBuilder text = new StringBuilder();
         try
         {
-            String[] args = { "/system/bin/cat", "/proc/cpuinfo" };
-            Process process = new ProcessBuilder( args ).start();
-            InputStream in = process.getInputStream();
-            byte[] re = new byte[1024];
-            while( in.read( re ) != -1 )
-                result = result + new String( re );
-            in.close();
+            Reader reader = new InputStreamReader( new FileInputStream( "/proc/cpuinfo" ),
+                    "US-ASCII" );
+            try
+            {
+                char[] buffer = new char[4096];
+                int n;
+                while( ( n = reader.read( buffer ) ) != -1 )
+                    text.append( buffer, 0, n );
+            }
+            finally
+            {
+                reader.close();
+            }
         }
         catch( IOException ex )
         {
-            ex.printStackTrace();
+            Log.w( "DeviceUtil", "Failed to read /proc/cpuinfo", ex );
         }
         
         // Remove the serial number for privacy
         Pattern pattern = Pattern.compile( "^serial\\s*?:.*?$", Pattern.CASE_INSENSITIVE
                 | Pattern.MULTILINE );
-        result = pattern.matcher( result ).replaceAll( "Serial : XXXX" );
+        String result = pattern.matcher( text ).replaceAll( "Serial : XXXX" );
         
         // Additional information in android.os.Build may be useful
         result += "\n";
@@ -89,7 +105,9 @@ public class DeviceUtil
         result += "Manufacturer: " + Build.MANUFACTURER + "\n";
         result += "Model: " + Build.MODEL + "\n";
         result += "Product: " + Build.PRODUCT + "\n";
-        return result;
+        
+        sCpuInfo = result;
+        return sCpuInfo;
     }
     
     @TargetApi( 12 )
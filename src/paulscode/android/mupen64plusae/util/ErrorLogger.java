@@ -20,19 +20,65 @@
  */
 package paulscode.android.mupen64plusae.util;
 
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import paulscode.android.mupen64plusae.persistent.ConcurrentConfigFile;
+import android.util.Log;
 
 /**
  * A small class to encapsulate the error logging process for Mupen64PlusAE.
+ * <p>
+ * Logging never blocks on file I/O. Each {@link #put(String, String, String)} becomes a record on
+ * a bounded, lock-free queue, and a background thread appends the queued records in batches to a
+ * journal file next to the log. The log itself is only rewritten when {@link #compact()} is
+ * called, which replays the journal into it and then deletes the journal. If the queue is full,
+ * records are dropped and the number dropped is logged with the next batch.
  */
 public class ErrorLogger
 {
-    private static ConfigFile mLogfile;
-    private static String mMessage = null;
+    private static final int MAX_PENDING = 256;
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String DROPPED_SECTION = "ErrorLogger";
+    private static final String DROPPED_PARAMETER = "dropped";
+    
+    // Written from background tasks as well as the UI thread
+    private static volatile String mLogfile;
+    private static volatile String mMessage = null;
+    
+    // Records waiting to be appended to the journal
+    private static final ConcurrentLinkedQueue<String> mPending =
+            new ConcurrentLinkedQueue<String>();
+    private static final AtomicInteger mPendingCount = new AtomicInteger();
+    private static final AtomicInteger mDroppedCount = new AtomicInteger();
+    
+    // Serializes access to the journal file between the writer thread and compact()
+    private static final Object mJournalLock = new Object();
+    private static Thread mWriter;
     
     public static void initialize( String filename )
     {
-        mLogfile = new ConfigFile( filename );
+        mLogfile = filename;
+        synchronized( mJournalLock )
+        {
+            if( mWriter == null )
+            {
+                mWriter = new Thread( mJournalWriter, "ErrorLoggerThread" );
+                mWriter.setDaemon( true );
+                mWriter.setPriority( Thread.MIN_PRIORITY );
+                mWriter.start();
+            }
+        }
     }
     
     public static boolean hasError()
@@ -62,10 +108,213 @@ public class ErrorLogger
     
     public static void put( String section, String parameter, String value )
     {
-        if( mLogfile != null )
-        {  // TODO: sometimes getting null pointer exception for mLogfile.. figure out why it is null.
-            mLogfile.put( section, parameter, value );
-            mLogfile.save();
+        if( mLogfile == null )
+            return;
+        
+        // Reserve a slot first so the queue can never grow past its bound
+        if( mPendingCount.incrementAndGet() > MAX_PENDING )
+        {
+            mPendingCount.decrementAndGet();
+            mDroppedCount.incrementAndGet();
+            return;
+        }
+        
+        mPending.offer( encode( section ) + '\t' + encode( parameter ) + '\t' + encode( value ) );
+        Thread writer = mWriter;
+        if( writer != null )
+            LockSupport.unpark( writer );
+    }
+    
+    /**
+     * Appends any queued records to the journal, then replays the journal into the log file and
+     * deletes it. This rewrites the whole log, so it should be called from a background thread.
+     * 
+     * @return True if the log is up to date.
+     */
+    public static boolean compact()
+    {
+        String filename = mLogfile;
+        if( filename == null )
+            return false;
+        
+        synchronized( mJournalLock )
+        {
+            flush( filename );
+            
+            File journal = new File( filename + JOURNAL_SUFFIX );
+            if( !journal.exists() )
+                return true;
+            
+            ConcurrentConfigFile logfile = new ConcurrentConfigFile( filename );
+            BufferedReader reader = null;
+            try
+            {
+                reader = new BufferedReader( new InputStreamReader(
+                        new FileInputStream( journal ) ) );
+                String line;
+                while( ( line = reader.readLine() ) != null )
+                {
+                    String[] fields = line.split( "\t", -1 );
+                    if( fields.length == 3 )
+                        logfile.put( decode( fields[0] ), decode( fields[1] ),
+                                decode( fields[2] ) );
+                }
+            }
+            catch( IOException e )
+            {
+                Log.e( "ErrorLogger", "Unable to read " + journal.getPath() + ": "
+                        + e.getMessage() );
+                return false;
+            }
+            finally
+            {
+                if( reader != null )
+                {
+                    try
+                    {
+                        reader.close();
+                    }
+                    catch( IOException ignored )
+                    {
+                    }
+                }
+            }
+            
+            if( !logfile.save() )
+                return false;
+            return journal.delete();
+        }
+    }
+    
+    /** Runnable that appends queued records to the journal whenever there are any. */
+    private static final Runnable mJournalWriter = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            while( true )
+            {
+                if( mPending.isEmpty() && mDroppedCount.get() == 0 )
+                {
+                    // Woken by put(); spurious wakeups just loop back here
+                    LockSupport.park();
+                    continue;
+                }
+                
+                String filename = mLogfile;
+                if( filename != null )
+                {
+                    synchronized( mJournalLock )
+                    {
+                        flush( filename );
+                    }
+                }
+            }
+        }
+    };
+    
+    /**
+     * Appends everything currently queued to the journal, in a single write. Must be called with
+     * the journal lock held.
+     */
+    private static void flush( String filename )
+    {
+        StringBuilder batch = new StringBuilder();
+        String record;
+        while( ( record = mPending.poll() ) != null )
+        {
+            mPendingCount.decrementAndGet();
+            batch.append( record ).append( '\n' );
+        }
+        
+        int dropped = mDroppedCount.getAndSet( 0 );
+        if( dropped > 0 )
+            batch.append( DROPPED_SECTION ).append( '\t' ).append( DROPPED_PARAMETER )
+                    .append( '\t' ).append( dropped ).append( '\n' );
+        
+        if( batch.length() == 0 )
+            return;
+        
+        Writer writer = null;
+        try
+        {
+            writer = new BufferedWriter( new OutputStreamWriter( new FileOutputStream( filename
+                    + JOURNAL_SUFFIX, true ) ) );
+            writer.write( batch.toString() );
+        }
+        catch( IOException e )
+        {
+            Log.e( "ErrorLogger", "Unable to append to " + filename + JOURNAL_SUFFIX + ": "
+                    + e.getMessage() );
+        }
+        finally
+        {
+            if( writer != null )
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Escapes the characters that delimit journal records.
+     */
+    private static String encode( String text )
+    {
+        if( text == null )
+            return "";
+        
+        StringBuilder builder = new StringBuilder( text.length() );
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( c == '\\' )
+                builder.append( "\\\\" );
+            else if( c == '\t' )
+                builder.append( "\\t" );
+            else if( c == '\n' )
+                builder.append( "\\n" );
+            else if( c == '\r' )
+                builder.append( "\\r" );
+            else
+                builder.append( c );
+        }
+        return builder.toString();
+    }
+    
+    /**
+     * Reverses {@link #encode(String)}.
+     */
+    private static String decode( String text )
+    {
+        if( text.indexOf( '\\' ) < 0 )
+            return text;
+        
+        StringBuilder builder = new StringBuilder( text.length() );
+        for( int i = 0; i < text.length(); i++ )
+        {
+            char c = text.charAt( i );
+            if( c == '\\' && i + 1 < text.length() )
+            {
+                char next = text.charAt( ++i );
+                if( next == 't' )
+                    builder.append( '\t' );
+                else if( next == 'n' )
+                    builder.append( '\n' );
+                else if( next == 'r' )
+                    builder.append( '\r' );
+                else
+                    builder.append( next );
+            }
+            else
+                builder.append( c );
         }
+        return builder.toString();
     }
 }
@@ -0,0 +1,409 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import paulscode.android.mupen64plusae.persistent.RomMetadataCache;
+import android.os.StatFs;
+import android.util.Log;
+
+/**
+ * A size-bounded directory of ROMs extracted from ZIP files, so that relaunching a zipped game
+ * doesn't have to inflate it again.
+ * <p>
+ * Cached ROMs are always stored in big-endian (.z64) order (see {@link RomNormalizer}), so the core
+ * never has to byte-swap them. For the same reason, uncompressed .v64 and .n64 dumps are cached
+ * too, in normalized form.
+ * <p>
+ * Each extracted ROM is named after the archive's canonical path, length and modification time,
+ * so a changed archive is never served a stale copy. When the total size of the cache would exceed
+ * its quota, the least recently used ROMs are deleted first. The usage order is kept in a small
+ * index file in the cache directory, since file timestamps can't be updated on every filesystem.
+ * A ROM is never cached if it would not fit in the quota, or if it would leave the storage device
+ * nearly full.
+ */
+public class ExtractedRomCache
+{
+    // Space that must remain free on the device after extracting a ROM
+    private static final long MIN_FREE_SPACE = 32L * 1024 * 1024;
+    
+    private static final String INDEX_NAME = "lru.idx";
+    private static final String ROM_EXTENSION = ".rom";
+    
+    private final File mDir;
+    private final long mQuota;
+    
+    // File names of the cached ROMs and their sizes, least recently used first
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>( 16,
+            0.75f, true );
+    private long mTotalSize = 0;
+    
+    /**
+     * Constructor: Opens the cache directory, creating it if necessary.
+     *
+     * @param cacheDir The directory to keep the extracted ROMs in.
+     * @param quota The maximum total size of the extracted ROMs, in bytes.
+     */
+    public ExtractedRomCache( String cacheDir, long quota )
+    {
+        mDir = new File( cacheDir );
+        mQuota = quota;
+        mDir.mkdirs();
+        load();
+    }
+    
+    /**
+     * Looks up the extracted copy of a ROM.
+     *
+     * @param archivePath The path to the ZIP file or uncompressed ROM.
+     * @return The path to the extracted ROM, or null if it isn't cached.
+     */
+    public synchronized String get( String archivePath )
+    {
+        String name = getName( new File( archivePath ) );
+        if( name == null || mEntries.get( name ) == null )
+            return null;
+        
+        File file = new File( mDir, name );
+        if( !file.isFile() )
+        {
+            // Deleted behind our back
+            mTotalSize -= mEntries.remove( name );
+            saveIndex();
+            return null;
+        }
+        
+        // The lookup above made this the most recently used entry
+        saveIndex();
+        return file.getAbsolutePath();
+    }
+    
+    /**
+     * Returns the extracted copy of a ROM, extracting it first if it isn't cached. The ROM is
+     * converted to big-endian (.z64) order on the way, and its checksums are computed and stored
+     * in the metadata cache.
+     *
+     * @param archivePath The path to the ZIP file, or to an uncompressed ROM that isn't in
+     *            big-endian order.
+     * @param metadata The cache to store the ROM's checksums in, or null.
+     * @return The path to the extracted ROM, or null if it couldn't be extracted or wouldn't fit.
+     */
+    public synchronized String extract( String archivePath, RomMetadataCache metadata )
+    {
+        String cached = get( archivePath );
+        if( cached != null )
+            return cached;
+        
+        File archive = new File( archivePath );
+        String name = getName( archive );
+        if( name == null )
+            return null;
+        
+        ZipFile zipfile = null;
+        File tmp = new File( mDir, name + ".tmp" );
+        try
+        {
+            InputStream romStream;
+            long size;
+            if( archivePath.toLowerCase( Locale.US ).endsWith( ".zip" ) )
+            {
+                zipfile = new ZipFile( archive );
+                ZipEntry entry = Utility.findFirstROM( zipfile );
+                if( entry == null )
+                {
+                    Log.e( "ExtractedRomCache", "No compatible ROMs found in " + archivePath );
+                    return null;
+                }
+                romStream = zipfile.getInputStream( entry );
+                size = entry.getSize();
+            }
+            else
+            {
+                romStream = new FileInputStream( archive );
+                size = archive.length();
+            }
+            
+            // Evicting cached ROMs can make room on a nearly full device, too
+            long shortfall = Math.max( 0, size + MIN_FREE_SPACE - getFreeSpace() );
+            if( size < 0 || size > mQuota || shortfall > mTotalSize )
+            {
+                Log.i( "ExtractedRomCache", "Not caching " + archivePath + " (" + size
+                        + " bytes)" );
+                romStream.close();
+                return null;
+            }
+            
+            // Any older copy of this archive will never be used again
+            long limit = Math.min( mQuota - size, mTotalSize - shortfall );
+            removeOlderCopies( name );
+            evict( limit );
+            
+            // The checksums are taken after normalizing, to match the ROM catalog
+            RomDigestInputStream inputStream = new RomDigestInputStream(
+                    RomNormalizer.wrap( romStream ) );
+            StreamUtil.copy( inputStream, tmp );
+            File file = new File( mDir, name );
+            if( !tmp.renameTo( file ) )
+                throw new IOException( "Unable to rename " + tmp.getName() );
+            inputStream.storeIn( metadata, archivePath );
+            
+            mEntries.put( name, file.length() );
+            mTotalSize += file.length();
+            saveIndex();
+            return file.getAbsolutePath();
+        }
+        catch( IOException e )
+        {
+            Log.e( "ExtractedRomCache", "Unable to extract " + archivePath + ": " + e.getMessage() );
+            tmp.delete();
+            return null;
+        }
+        finally
+        {
+            if( zipfile != null )
+            {
+                try
+                {
+                    zipfile.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Deletes all of the cached ROMs.
+     */
+    public synchronized void clear()
+    {
+        evict( 0 );
+        saveIndex();
+    }
+    
+    /**
+     * Returns the total size of the cached ROMs.
+     *
+     * @return The number of bytes used by the cache.
+     */
+    public synchronized long getTotalSize()
+    {
+        return mTotalSize;
+    }
+    
+    // Deletes the least recently used ROMs until the total size is no more than the limit
+    private void evict( long limit )
+    {
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while( mTotalSize > limit && iterator.hasNext() )
+        {
+            Map.Entry<String, Long> entry = iterator.next();
+            new File( mDir, entry.getKey() ).delete();
+            mTotalSize -= entry.getValue();
+            iterator.remove();
+        }
+    }
+    
+    // Deletes the copies extracted from an earlier version of the same archive
+    private void removeOlderCopies( String name )
+    {
+        String prefix = name.substring( 0, name.indexOf( '-' ) + 1 );
+        Iterator<Map.Entry<String, Long>> iterator = mEntries.entrySet().iterator();
+        while( iterator.hasNext() )
+        {
+            Map.Entry<String, Long> entry = iterator.next();
+            if( entry.getKey().startsWith( prefix ) )
+            {
+                new File( mDir, entry.getKey() ).delete();
+                mTotalSize -= entry.getValue();
+                iterator.remove();
+            }
+        }
+    }
+    
+    private void load()
+    {
+        File[] files = mDir.listFiles();
+        if( files == null )
+            return;
+        
+        // Without an index, the oldest files are assumed to be the least recently used
+        Arrays.sort( files, new Comparator<File>()
+        {
+            @Override
+            public int compare( File lhs, File rhs )
+            {
+                long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        } );
+        
+        LinkedHashMap<String, Long> found = new LinkedHashMap<String, Long>();
+        for( File file : files )
+        {
+            if( file.getName().endsWith( ROM_EXTENSION ) )
+                found.put( file.getName(), file.length() );
+            else if( !file.getName().equals( INDEX_NAME ) )
+                file.delete(); // Leftover from an interrupted extraction
+        }
+        
+        // Add the indexed files in usage order, then any the index doesn't know about
+        for( String name : readIndex() )
+        {
+            Long size = found.remove( name );
+            if( size != null )
+                mEntries.put( name, size );
+        }
+        mEntries.putAll( found );
+        
+        for( Long size : mEntries.values() )
+            mTotalSize += size;
+        
+        // Honor a quota that has been lowered since last time
+        evict( mQuota );
+    }
+    
+    private ArrayList<String> readIndex()
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        File index = new File( mDir, INDEX_NAME );
+        if( !index.exists() )
+            return names;
+        
+        try
+        {
+            BufferedReader reader = new BufferedReader( new FileReader( index ) );
+            try
+            {
+                String line;
+                while( ( line = reader.readLine() ) != null )
+                    names.add( line );
+            }
+            finally
+            {
+                reader.close();
+            }
+        }
+        catch( IOException e )
+        {
+            Log.w( "ExtractedRomCache", "Unable to read usage index: " + e.getMessage() );
+        }
+        return names;
+    }
+    
+    private void saveIndex()
+    {
+        File index = new File( mDir, INDEX_NAME );
+        try
+        {
+            Writer writer = new FileWriter( index );
+            try
+            {
+                for( String name : mEntries.keySet() )
+                {
+                    writer.write( name );
+                    writer.write( '\n' );
+                }
+            }
+            finally
+            {
+                writer.close();
+            }
+        }
+        catch( IOException e )
+        {
+            // Not fatal, the order will just be approximated from the file dates next time
+            Log.w( "ExtractedRomCache", "Unable to write usage index: " + e.getMessage() );
+        }
+    }
+    
+    private long getFreeSpace()
+    {
+        try
+        {
+            StatFs stat = new StatFs( mDir.getAbsolutePath() );
+            return (long) stat.getAvailableBlocks() * stat.getBlockSize();
+        }
+        catch( IllegalArgumentException e )
+        {
+            return 0;
+        }
+    }
+    
+    // Names the extracted copy of an archive, e.g. "0123456789abcdef-4f1c2e00-8a3bc1.rom"
+    private static String getName( File archive )
+    {
+        if( !archive.isFile() )
+            return null;
+        
+        String path;
+        try
+        {
+            path = archive.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            path = archive.getAbsolutePath();
+        }
+        
+        try
+        {
+            byte[] digest = MessageDigest.getInstance( "MD5" ).digest( path.getBytes( "UTF-8" ) );
+            StringBuilder name = new StringBuilder();
+            for( int i = 0; i < 8; i++ )
+                name.append( String.format( Locale.US, "%02x", digest[i] ) );
+            name.append( '-' ).append( Long.toHexString( archive.lastModified() ) );
+            name.append( '-' ).append( Long.toHexString( archive.length() ) );
+            return name.append( ROM_EXTENSION ).toString();
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            Log.e( "ExtractedRomCache", "MD5 not available" );
+            return null;
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            Log.e( "ExtractedRomCache", "UTF-8 not available" );
+            return null;
+        }
+    }
+}
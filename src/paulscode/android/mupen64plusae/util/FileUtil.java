@@ -24,11 +24,8 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
@@ -231,18 +228,7 @@ public class FileUtil
             
             try
             {
-                final InputStream in = new FileInputStream( src );
-                final OutputStream out = new FileOutputStream( dest );
-                
-                byte[] buf = new byte[1024];
-                int len;
-                while( ( len = in.read( buf ) ) > 0 )
-                {
-                    out.write( buf, 0, len );
-                }
-                
-                in.close();
-                out.close();
+                StreamUtil.copy( src, dest );
             }
             catch( FileNotFoundException fnfe )
             {
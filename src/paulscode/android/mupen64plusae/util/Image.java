@@ -20,6 +20,9 @@
  */
 package paulscode.android.mupen64plusae.util;
 
+import java.io.IOException;
+import java.io.InputStream;
+
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -44,7 +47,8 @@ public class Image
     public Rect drawRect = null;
     
     /**
-     * Constructor: Loads an image file and sets the initial properties.
+     * Constructor: Loads an image file and sets the initial properties. The file is opened
+     * through {@link AssetSource}, so it may be read from the APK.
      * 
      * @param res
      *            Handle to the app resources.
@@ -53,7 +57,7 @@ public class Image
      */
     public Image( Resources res, String filename )
     {
-        image = BitmapFactory.decodeFile( filename );
+        image = decode( filename );
         drawable = new BitmapDrawable( res, image );
         
         if( image == null )
@@ -104,6 +108,35 @@ public class Image
         drawRect = new Rect();
     }
     
+    /**
+     * Decodes an image file.
+     * 
+     * @param filename
+     *            Path to the image file.
+     * @return The image, or null if the file doesn't exist or can't be decoded.
+     */
+    private static Bitmap decode( String filename )
+    {
+        InputStream in;
+        try
+        {
+            in = AssetSource.open( filename );
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+        
+        try
+        {
+            return BitmapFactory.decodeStream( in );
+        }
+        finally
+        {
+            StreamUtil.closeQuietly( in );
+        }
+    }
+    
     /**
      * Sets the screen position of the image (in pixels).
      * 
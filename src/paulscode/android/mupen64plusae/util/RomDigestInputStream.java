@@ -0,0 +1,171 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+
+import paulscode.android.mupen64plusae.persistent.RomMetadataCache;
+import android.util.Log;
+
+/**
+ * An input stream that computes the MD5 and CRC32 of a ROM image as it is read, so the checksums
+ * come for free with a copy or load that has to read the whole image anyway.
+ * <p>
+ * The MD5 is the one used to identify ROM dumps in the ROM catalog (mupen64plus.ini). Both
+ * checksums cover exactly the bytes read through this stream, so they are only meaningful once the
+ * whole image has been read.
+ */
+public class RomDigestInputStream extends FilterInputStream
+{
+    private final MessageDigest mMd5;
+    private final CRC32 mCrc32 = new CRC32();
+    
+    /**
+     * Constructor.
+     *
+     * @param in The stream containing the ROM image.
+     */
+    public RomDigestInputStream( InputStream in )
+    {
+        super( in );
+        
+        MessageDigest md5 = null;
+        try
+        {
+            md5 = MessageDigest.getInstance( "MD5" );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            Log.e( "RomDigestInputStream", "MD5 not available" );
+        }
+        mMd5 = md5;
+    }
+    
+    @Override
+    public int read() throws IOException
+    {
+        int b = super.read();
+        if( b >= 0 )
+        {
+            if( mMd5 != null )
+                mMd5.update( (byte) b );
+            mCrc32.update( b );
+        }
+        return b;
+    }
+    
+    @Override
+    public int read( byte[] buffer, int offset, int count ) throws IOException
+    {
+        int n = super.read( buffer, offset, count );
+        if( n > 0 )
+        {
+            if( mMd5 != null )
+                mMd5.update( buffer, offset, n );
+            mCrc32.update( buffer, offset, n );
+        }
+        return n;
+    }
+    
+    @Override
+    public long skip( long count ) throws IOException
+    {
+        // Skipped bytes still have to be digested
+        byte[] buffer = StreamUtil.acquireBuffer();
+        try
+        {
+            long skipped = 0;
+            while( skipped < count )
+            {
+                int n = read( buffer, 0, (int) Math.min( buffer.length, count - skipped ) );
+                if( n < 0 )
+                    break;
+                skipped += n;
+            }
+            return skipped;
+        }
+        finally
+        {
+            StreamUtil.releaseBuffer( buffer );
+        }
+    }
+    
+    @Override
+    public boolean markSupported()
+    {
+        return false;
+    }
+    
+    /**
+     * Returns the MD5 of everything read so far. Call this only once, after the last read.
+     *
+     * @return The MD5 as 32 upper-case hex digits, or null if MD5 isn't available.
+     */
+    public String getMd5()
+    {
+        if( mMd5 == null )
+            return null;
+        
+        byte[] digest = mMd5.digest();
+        StringBuilder hex = new StringBuilder( digest.length * 2 );
+        for( byte b : digest )
+        {
+            hex.append( Character.toUpperCase( Character.forDigit( ( b >> 4 ) & 0xF, 16 ) ) );
+            hex.append( Character.toUpperCase( Character.forDigit( b & 0xF, 16 ) ) );
+        }
+        return hex.toString();
+    }
+    
+    /**
+     * Returns the CRC32 of everything read so far.
+     *
+     * @return The CRC32 of the image.
+     */
+    public long getCrc32()
+    {
+        return mCrc32.getValue();
+    }
+    
+    /**
+     * Stores the checksums in the ROM metadata cache. Call this only once, after the whole image
+     * has been read.
+     *
+     * @param cache The cache to update, may be null.
+     * @param romPath The ROM file (or the ZIP file containing it).
+     */
+    public void storeIn( RomMetadataCache cache, String romPath )
+    {
+        if( cache == null )
+            return;
+        
+        String md5 = getMd5();
+        if( md5 != null )
+        {
+            cache.putDigest( romPath, md5, getCrc32() );
+            cache.save();
+        }
+    }
+}
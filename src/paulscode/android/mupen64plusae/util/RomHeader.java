@@ -0,0 +1,217 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The identifying fields of an N64 ROM header, read directly from the ROM file.
+ * <p>
+ * Only the first 64 bytes of the ROM are read. For a zipped ROM, only those bytes of the first ROM
+ * entry are inflated; nothing is extracted to disk. The byte order of the image (.z64 big-endian,
+ * .v64 byte-swapped, or .n64 word-swapped) is detected from the first byte, the same way the
+ * front-end does it, so the results match what the core sees.
+ */
+public final class RomHeader
+{
+    /** The number of bytes in an N64 ROM header. */
+    public static final int SIZE = 64;
+    
+    /** Byte order of a big-endian (native) image. */
+    public static final int ORDER_Z64 = 0;
+    
+    /** Byte order of a byte-swapped image. */
+    public static final int ORDER_V64 = 1;
+    
+    /** Byte order of a word-swapped (little-endian) image. */
+    public static final int ORDER_N64 = 2;
+    
+    // Offsets of the fields we need within the (big-endian) header
+    private static final int OFFSET_CRC1 = 0x10;
+    private static final int OFFSET_CRC2 = 0x14;
+    private static final int OFFSET_NAME = 0x20;
+    private static final int NAME_LENGTH = 20;
+    
+    /** The first CRC value in the header. */
+    public final int crc1;
+    
+    /** The second CRC value in the header. */
+    public final int crc2;
+    
+    /** The internal name of the ROM, trimmed. */
+    public final String name;
+    
+    /** The byte order of the image, one of the ORDER_* constants. */
+    public final int order;
+    
+    private RomHeader( byte[] header, int order )
+    {
+        this.order = order;
+        crc1 = readInt( header, OFFSET_CRC1 );
+        crc2 = readInt( header, OFFSET_CRC2 );
+        name = readName( header );
+    }
+    
+    /**
+     * Reads the header of a ROM, which may be a plain image or the first ROM in a ZIP file.
+     *
+     * @param filename The ROM file (.z64, .v64, .n64 or .zip).
+     *
+     * @return The header.
+     *
+     * @throws IOException If the file can't be read or doesn't contain a complete header.
+     */
+    public static RomHeader read( String filename ) throws IOException
+    {
+        byte[] header = new byte[SIZE];
+        if( filename.toLowerCase( Locale.US ).endsWith( ".zip" ) )
+        {
+            ZipFile zipfile = new ZipFile( filename );
+            try
+            {
+                ZipEntry entry = Utility.findFirstROM( zipfile );
+                if( entry == null )
+                    throw new IOException( "No compatible ROMs found in .zip archive" );
+                
+                // Only the first block of the entry gets inflated
+                readFully( zipfile.getInputStream( entry ), header );
+            }
+            finally
+            {
+                zipfile.close();
+            }
+        }
+        else
+        {
+            readFully( new FileInputStream( filename ), header );
+        }
+        
+        int order = getOrder( header[0] );
+        swap( header, order );
+        return new RomHeader( header, order );
+    }
+    
+    /**
+     * Returns the CRC values in the format used to look up ROMs and cheats, e.g.
+     * "635A2BFF 8B022326".
+     *
+     * @return Both CRC values as upper-case, zero-padded hex, separated by a space.
+     */
+    public String getCrc()
+    {
+        return String.format( Locale.US, "%08X %08X", crc1, crc2 );
+    }
+    
+    // Reads exactly buffer.length bytes, then closes the stream
+    private static void readFully( InputStream stream, byte[] buffer ) throws IOException
+    {
+        try
+        {
+            int total = 0;
+            while( total < buffer.length )
+            {
+                int n = stream.read( buffer, total, buffer.length - total );
+                if( n < 0 )
+                    throw new IOException( "ROM is smaller than its header" );
+                total += n;
+            }
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+    
+    /**
+     * Detects the byte order of a ROM image from its first byte.
+     *
+     * @param firstByte The first byte of the image, as stored in the file.
+     *
+     * @return One of the ORDER_* constants. Unrecognized images are assumed to be big-endian.
+     */
+    public static int getOrder( byte firstByte )
+    {
+        if( firstByte == 0x37 )
+            return ORDER_V64;
+        else if( firstByte == 0x40 )
+            return ORDER_N64;
+        else
+            return ORDER_Z64;
+    }
+    
+    // Puts the header into big-endian (.z64) order
+    private static void swap( byte[] header, int order )
+    {
+        byte temp;
+        if( order == ORDER_V64 )
+        {
+            // Byte-swapped (.v64)
+            for( int i = 0; i < header.length; i += 2 )
+            {
+                temp = header[i];
+                header[i] = header[i + 1];
+                header[i + 1] = temp;
+            }
+        }
+        else if( order == ORDER_N64 )
+        {
+            // Word-swapped (.n64)
+            for( int i = 0; i < header.length; i += 4 )
+            {
+                temp = header[i];
+                header[i] = header[i + 3];
+                header[i + 3] = temp;
+                temp = header[i + 1];
+                header[i + 1] = header[i + 2];
+                header[i + 2] = temp;
+            }
+        }
+    }
+    
+    private static int readInt( byte[] header, int offset )
+    {
+        return ( header[offset] & 0xFF ) << 24 | ( header[offset + 1] & 0xFF ) << 16
+                | ( header[offset + 2] & 0xFF ) << 8 | ( header[offset + 3] & 0xFF );
+    }
+    
+    private static String readName( byte[] header )
+    {
+        // The name is space-padded, but may also be null-terminated
+        int length = 0;
+        while( length < NAME_LENGTH && header[OFFSET_NAME + length] != 0 )
+            length++;
+        
+        try
+        {
+            return new String( header, OFFSET_NAME, length, "UTF-8" ).trim();
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            return new String( header, OFFSET_NAME, length ).trim();
+        }
+    }
+}
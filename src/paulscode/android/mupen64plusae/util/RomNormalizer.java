@@ -0,0 +1,191 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Converts ROM images to big-endian (.z64) byte order, the order the core runs them in.
+ * <p>
+ * Byte-swapped (.v64) and word-swapped (.n64) dumps are converted a 32-bit word at a time, through
+ * an int view of the image, in chunks of {@link StreamUtil#BUFFER_SIZE} bytes. The byte order is
+ * detected from the first byte of the image, as in {@link RomHeader}. Images that are already
+ * big-endian are left alone. Checksums computed after this stage match the ones in the ROM
+ * catalog, which are computed on big-endian images.
+ */
+public final class RomNormalizer
+{
+    private static final int CHUNK_WORDS = StreamUtil.BUFFER_SIZE / 4;
+    
+    private RomNormalizer()
+    {
+    }
+    
+    /**
+     * Wraps a stream containing a ROM image, so that the image is read in big-endian order.
+     *
+     * @param in The stream containing the ROM image, in any byte order.
+     * @return A stream of the big-endian image. Closing it closes the original stream.
+     */
+    public static InputStream wrap( InputStream in )
+    {
+        return new NormalizingInputStream( in );
+    }
+    
+    // Swaps the words between the position and limit of the buffer, leaving any odd bytes alone
+    private static void swap( ByteBuffer image, int order, int[] scratch )
+    {
+        // Views are always created big-endian from a duplicate, whatever the original's order
+        IntBuffer words = image.duplicate().asIntBuffer();
+        while( words.hasRemaining() )
+        {
+            int start = words.position();
+            int count = Math.min( scratch.length, words.remaining() );
+            words.get( scratch, 0, count );
+            
+            if( order == RomHeader.ORDER_V64 )
+            {
+                // Byte-swapped: swap the bytes of each half-word
+                for( int i = 0; i < count; i++ )
+                {
+                    int word = scratch[i];
+                    scratch[i] = ( ( word & 0x00FF00FF ) << 8 ) | ( ( word >>> 8 ) & 0x00FF00FF );
+                }
+            }
+            else
+            {
+                // Word-swapped: reverse the bytes of each word
+                for( int i = 0; i < count; i++ )
+                    scratch[i] = Integer.reverseBytes( scratch[i] );
+            }
+            
+            words.position( start );
+            words.put( scratch, 0, count );
+        }
+    }
+    
+    /**
+     * A stream that reads the underlying image a chunk at a time, and normalizes each chunk
+     * before handing it out. Chunks are filled completely (except at the end of the image), so
+     * words never straddle two chunks.
+     */
+    private static final class NormalizingInputStream extends FilterInputStream
+    {
+        private byte[] mChunk = StreamUtil.acquireBuffer();
+        private final int[] mScratch = new int[CHUNK_WORDS];
+        private int mPosition = 0;
+        private int mLimit = 0;
+        private int mOrder = -1;
+        
+        public NormalizingInputStream( InputStream in )
+        {
+            super( in );
+        }
+        
+        @Override
+        public int read() throws IOException
+        {
+            if( mPosition == mLimit && !fill() )
+                return -1;
+            return mChunk[mPosition++] & 0xFF;
+        }
+        
+        @Override
+        public int read( byte[] buffer, int offset, int count ) throws IOException
+        {
+            if( count == 0 )
+                return 0;
+            if( mPosition == mLimit && !fill() )
+                return -1;
+            
+            int n = Math.min( count, mLimit - mPosition );
+            System.arraycopy( mChunk, mPosition, buffer, offset, n );
+            mPosition += n;
+            return n;
+        }
+        
+        @Override
+        public long skip( long count ) throws IOException
+        {
+            if( count <= 0 || ( mPosition == mLimit && !fill() ) )
+                return 0;
+            
+            int n = (int) Math.min( count, mLimit - mPosition );
+            mPosition += n;
+            return n;
+        }
+        
+        @Override
+        public int available()
+        {
+            return mLimit - mPosition;
+        }
+        
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+        
+        @Override
+        public void close() throws IOException
+        {
+            if( mChunk != null )
+            {
+                StreamUtil.releaseBuffer( mChunk );
+                mChunk = null;
+                mPosition = mLimit = 0;
+            }
+            super.close();
+        }
+        
+        // Reads and normalizes the next chunk; returns false at the end of the image
+        private boolean fill() throws IOException
+        {
+            if( mChunk == null )
+                throw new IOException( "Stream closed" );
+            
+            int total = 0;
+            while( total < mChunk.length )
+            {
+                int n = in.read( mChunk, total, mChunk.length - total );
+                if( n < 0 )
+                    break;
+                total += n;
+            }
+            if( total == 0 )
+                return false;
+            
+            if( mOrder < 0 )
+                mOrder = RomHeader.getOrder( mChunk[0] );
+            if( mOrder != RomHeader.ORDER_Z64 )
+                swap( ByteBuffer.wrap( mChunk, 0, total ), mOrder, mScratch );
+            
+            mPosition = 0;
+            mLimit = total;
+            return true;
+        }
+    }
+}
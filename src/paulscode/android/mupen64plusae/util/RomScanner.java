@@ -0,0 +1,356 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import paulscode.android.mupen64plusae.persistent.RomCatalog;
+import paulscode.android.mupen64plusae.persistent.RomCatalog.RomDetail;
+import paulscode.android.mupen64plusae.persistent.RomMetadataCache;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+/**
+ * Builds a ROM library by scanning directory trees for N64 ROMs.
+ * <p>
+ * One thread walks the directories, and hands every file that looks like a ROM (.z64, .v64, .n64
+ * or .zip) to a small pool of worker threads. The workers read the headers through the
+ * {@link RomMetadataCache}, so ROMs that haven't changed since the last scan cost only a file
+ * stat, and match them against the {@link RomCatalog}. Results are delivered to the listener on
+ * the UI thread in batches as they arrive, so a large collection on slow storage can be shown
+ * incrementally instead of after one long pass.
+ * <p>
+ * A scanner can only be started once. Create a new one to scan again.
+ */
+public class RomScanner
+{
+    /** The maximum time results are held back before being delivered, in milliseconds. */
+    private static final int BATCH_DELAY_MS = 200;
+    
+    /**
+     * The interface for receiving scan results. All methods are called on the UI thread.
+     */
+    public interface Listener
+    {
+        /**
+         * Called with the next batch of ROMs found.
+         *
+         * @param roms The ROMs found since the last call.
+         */
+        public void onRomsFound( List<RomInfo> roms );
+        
+        /**
+         * Called once, after the last batch has been delivered.
+         *
+         * @param total The total number of ROMs found.
+         * @param cancelled True if the scan was cancelled before it finished.
+         */
+        public void onScanFinished( int total, boolean cancelled );
+    }
+    
+    /**
+     * A ROM found by the scanner.
+     */
+    public static final class RomInfo
+    {
+        /** The header data of the ROM. */
+        public final RomMetadataCache.Entry entry;
+        
+        /** The catalog data of the ROM, or null if it isn't in the catalog. */
+        public final RomDetail detail;
+        
+        public RomInfo( RomMetadataCache.Entry entry, RomDetail detail )
+        {
+            this.entry = entry;
+            this.detail = detail;
+        }
+        
+        /**
+         * Returns the best available name for the ROM: the catalog name if known, otherwise the
+         * name in the ROM header, otherwise the file name.
+         *
+         * @return The name to show for this ROM.
+         */
+        public String getDisplayName()
+        {
+            if( detail != null && detail.goodName != null && detail.goodName.length() > 0 )
+                return detail.goodName;
+            else if( entry.name.length() > 0 )
+                return entry.name;
+            else
+                return new File( entry.path ).getName();
+        }
+    }
+    
+    private final RomMetadataCache mCache;
+    private final RomCatalog mCatalog;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+    private final ExecutorService mExecutor;
+    
+    private final ConcurrentLinkedQueue<RomInfo> mResults = new ConcurrentLinkedQueue<RomInfo>();
+    private final AtomicBoolean mIsDeliveryPosted = new AtomicBoolean( false );
+    private final AtomicInteger mTotal = new AtomicInteger( 0 );
+    private volatile boolean mIsCancelled = false;
+    private boolean mIsStarted = false;
+    
+    /**
+     * Constructor.
+     *
+     * @param cache The metadata cache used to read ROM headers.
+     * @param catalog The ROM catalog to match ROMs against, or null to skip matching.
+     * @param listener The listener to receive the results.
+     */
+    public RomScanner( RomMetadataCache cache, RomCatalog catalog, Listener listener )
+    {
+        mCache = cache;
+        mCatalog = catalog;
+        mListener = listener;
+        
+        // Header reads are mostly waiting on storage, so use at least a couple of threads
+        int threads = Math.max( 2, Runtime.getRuntime().availableProcessors() );
+        mExecutor = Executors.newFixedThreadPool( threads, new ThreadFactory()
+        {
+            private final AtomicInteger mCount = new AtomicInteger( 0 );
+            
+            @Override
+            public Thread newThread( Runnable r )
+            {
+                Thread thread = new Thread( r, "RomScannerWorker" + mCount.incrementAndGet() );
+                thread.setPriority( Thread.MIN_PRIORITY );
+                return thread;
+            }
+        } );
+    }
+    
+    /**
+     * Starts scanning in the background. Returns immediately.
+     *
+     * @param roots The directories to scan, including all of their subdirectories.
+     */
+    public synchronized void start( final List<String> roots )
+    {
+        if( mIsStarted )
+            throw new IllegalStateException( "RomScanner can only be started once" );
+        mIsStarted = true;
+        
+        Thread walker = new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                scan( roots );
+            }
+        }, "RomScanner" );
+        walker.setPriority( Thread.MIN_PRIORITY );
+        walker.start();
+    }
+    
+    /**
+     * Stops the scan as soon as possible. Results not yet delivered are discarded, and
+     * {@link Listener#onScanFinished(int, boolean)} is still called.
+     */
+    public void cancel()
+    {
+        mIsCancelled = true;
+        mExecutor.shutdownNow();
+    }
+    
+    private void scan( List<String> roots )
+    {
+        // Walk the directory trees, handing out the files as they're found
+        HashSet<String> visited = new HashSet<String>();
+        LinkedList<File> pending = new LinkedList<File>();
+        for( String root : roots )
+            pending.add( new File( root ) );
+        
+        while( !pending.isEmpty() && !mIsCancelled )
+        {
+            File dir = pending.removeFirst();
+            
+            // Don't follow symbolic links around in circles
+            if( !visited.add( getCanonicalPath( dir ) ) )
+                continue;
+            
+            File[] children = dir.listFiles( ROM_FILTER );
+            if( children == null )
+                continue;
+            
+            for( final File child : children )
+            {
+                if( child.isDirectory() )
+                {
+                    pending.add( child );
+                    continue;
+                }
+                
+                try
+                {
+                    mExecutor.execute( new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            read( child );
+                        }
+                    } );
+                }
+                catch( RejectedExecutionException e )
+                {
+                    // Cancelled
+                    break;
+                }
+            }
+        }
+        
+        // Wait for the workers to finish the files already handed out
+        mExecutor.shutdown();
+        try
+        {
+            while( !mExecutor.awaitTermination( 1, TimeUnit.SECONDS ) )
+            {
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Log.w( "RomScanner", "Interrupted while waiting for workers" );
+        }
+        
+        // Any new headers are worth keeping, even if the scan was cancelled
+        mCache.save();
+        
+        mHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                deliver();
+                mListener.onScanFinished( mTotal.get(), mIsCancelled );
+            }
+        } );
+    }
+    
+    private void read( File file )
+    {
+        if( mIsCancelled )
+            return;
+        
+        RomMetadataCache.Entry entry = mCache.lookup( file.getPath() );
+        if( entry == null )
+            return; // Not a ROM after all (e.g. a zip without a ROM in it)
+        
+        RomDetail detail = null;
+        if( mCatalog != null )
+        {
+            // The MD5 identifies the exact dump, but is only known once the ROM has been played
+            if( entry.md5 != null )
+                detail = mCatalog.lookupByMd5( entry.md5 );
+            
+            if( detail == null )
+            {
+                List<RomDetail> details = mCatalog.lookupByCrc( entry.getCrc() );
+                if( !details.isEmpty() )
+                    detail = details.get( 0 );
+            }
+        }
+        
+        mResults.add( new RomInfo( entry, detail ) );
+        mTotal.incrementAndGet();
+        
+        // Let the results pile up for a little while, then hand over whatever has been found
+        if( !mIsDeliveryPosted.getAndSet( true ) )
+        {
+            mHandler.postDelayed( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mIsDeliveryPosted.set( false );
+                    deliver();
+                }
+            }, BATCH_DELAY_MS );
+        }
+    }
+    
+    // Called on the UI thread
+    private void deliver()
+    {
+        if( mIsCancelled )
+        {
+            mResults.clear();
+            return;
+        }
+        
+        List<RomInfo> batch = new ArrayList<RomInfo>();
+        RomInfo info;
+        while( ( info = mResults.poll() ) != null )
+            batch.add( info );
+        
+        if( !batch.isEmpty() )
+            mListener.onRomsFound( batch );
+    }
+    
+    private static String getCanonicalPath( File file )
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return file.getAbsolutePath();
+        }
+    }
+    
+    // Accepts directories (except hidden ones) and files with a ROM or zip extension
+    private static final FileFilter ROM_FILTER = new FileFilter()
+    {
+        @Override
+        public boolean accept( File file )
+        {
+            String name = file.getName();
+            if( name.startsWith( "." ) )
+                return false;
+            else if( file.isDirectory() )
+                return true;
+            
+            String lowerName = name.toLowerCase( Locale.US );
+            return lowerName.endsWith( ".z64" ) || lowerName.endsWith( ".v64" )
+                    || lowerName.endsWith( ".n64" ) || lowerName.endsWith( ".zip" );
+        }
+    };
+}
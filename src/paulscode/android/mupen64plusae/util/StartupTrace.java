@@ -0,0 +1,482 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Times the launch path, from the splash screen to the first emulated frame.
+ * <p>
+ * {@link #start(String, String, String)} opens a trace, which stays open until
+ * {@link #finish()} is called when the first frame is drawn. The time the user spends browsing the
+ * menus isn't part of the launch, so the trace is split into segments, each timed on its own:
+ * {@code start} opens the first one, and {@link #beginSegment(String)} and
+ * {@link #endSegment(String)} open and close the others. While a segment is open, code along the
+ * launch path wraps its slow steps in named spans:
+ * 
+ * <pre>
+ * StartupTrace.Span span = StartupTrace.begin( &quot;CoreInterface.syncConfigFiles&quot; );
+ * syncConfigFiles( sUserPrefs, sAppData );
+ * span.end();
+ * </pre>
+ * 
+ * Spans may be opened and closed on any thread, and cost next to nothing when no trace is open.
+ * Spans opened between segments are dropped, and when a segment is opened again (e.g. the user
+ * backs out of a menu and comes back) only its latest run is kept.
+ * <p>
+ * When the trace finishes, it is written in the Chrome trace event format (load it in
+ * chrome://tracing or Perfetto), and the length of each segment and the total time of each span
+ * are added to a small history file, which keeps the latest launch and the latest launch of the
+ * previous build. {@link #getSummary} compares the two, so cold-start regressions show up from one
+ * build to the next.
+ */
+public final class StartupTrace
+{
+    /** The history section holding the latest launch. */
+    private static final String SECTION_LATEST = "Latest";
+    
+    /** The history section holding the latest launch of the previous build. */
+    private static final String SECTION_PREVIOUS = "Previous";
+    
+    /** The history key holding the build that was traced. */
+    private static final String KEY_BUILD = "build";
+    
+    /** The history key holding the names of the segments, in the order they were run. */
+    private static final String KEY_SEGMENTS = "segments";
+    
+    /** The segment opened by {@link #start(String, String, String)}, ended once the menu is up. */
+    public static final String SEGMENT_LAUNCH = "Splash to menu";
+    
+    /** The segment that builds the play menu. */
+    public static final String SEGMENT_PLAY_MENU = "Play menu";
+    
+    /** The segment from the user starting a game to its first frame. */
+    public static final String SEGMENT_GAME = "Game start to first frame";
+    
+    private static final ConcurrentLinkedQueue<Span> sSpans = new ConcurrentLinkedQueue<Span>();
+    private static final List<Segment> sSegments = new ArrayList<Segment>();
+    
+    // Written on the UI thread, read from every thread that opens spans
+    private static volatile boolean sIsActive = false;
+    private static volatile int sGeneration = 0;
+    private static volatile Segment sSegment = null;
+    private static volatile long sOrigin = 0;
+    private static volatile String sTraceFile = null;
+    private static volatile String sHistoryFile = null;
+    private static volatile String sBuild = null;
+    
+    /**
+     * A timed step of the launch.
+     */
+    public static final class Span
+    {
+        private final String mName;
+        private final int mGeneration;
+        private final Segment mSegment;
+        private final long mThreadId;
+        private final String mThreadName;
+        private final long mStart;
+        private long mEnd = -1;
+        
+        private Span( String name )
+        {
+            Thread thread = Thread.currentThread();
+            mName = name;
+            mGeneration = sGeneration;
+            mSegment = sSegment;
+            mThreadId = thread.getId();
+            mThreadName = thread.getName();
+            mStart = System.nanoTime();
+        }
+        
+        /**
+         * Closes the span. Only the first call has any effect, and spans that were opened while no
+         * segment was open (or for an earlier trace or segment run) are dropped.
+         */
+        public void end()
+        {
+            if( mEnd >= 0 )
+                return;
+            
+            mEnd = System.nanoTime();
+            if( !sIsActive || mSegment == null )
+                return;
+            
+            // Don't race beginSegment() discarding this span's segment
+            synchronized( StartupTrace.class )
+            {
+                if( sIsActive && mGeneration == sGeneration && !mSegment.mIsDiscarded )
+                    sSpans.add( this );
+            }
+        }
+    }
+    
+    // A part of the launch that is timed as a whole
+    private static final class Segment
+    {
+        private final String mName;
+        private final long mStart;
+        private long mEnd = -1;
+        private boolean mIsDiscarded = false;
+        
+        private Segment( String name, long start )
+        {
+            mName = name;
+            mStart = start;
+        }
+    }
+    
+    private StartupTrace()
+    {
+    }
+    
+    /**
+     * Opens a new trace and its first segment, discarding any trace that didn't reach the first
+     * frame.
+     * 
+     * @param traceFile The file to write the trace to when it finishes.
+     * @param historyFile The file to keep the segment lengths and span totals in.
+     * @param build The name of the build being traced, e.g. its version.
+     */
+    public static synchronized void start( String traceFile, String historyFile, String build )
+    {
+        sIsActive = false;
+        sGeneration++;
+        sSpans.clear();
+        sSegments.clear();
+        sTraceFile = traceFile;
+        sHistoryFile = historyFile;
+        sBuild = build;
+        sOrigin = System.nanoTime();
+        sIsActive = true;
+        beginSegment( SEGMENT_LAUNCH );
+    }
+    
+    /**
+     * Checks whether a trace is open.
+     * 
+     * @return True between {@link #start} and {@link #finish()}.
+     */
+    public static boolean isActive()
+    {
+        return sIsActive;
+    }
+    
+    /**
+     * Opens a segment, closing the open one if there is one. If a segment with the same name has
+     * run before in this trace, it and its spans are discarded. Does nothing if no trace is open.
+     * 
+     * @param name The name of the segment, shown in the summary.
+     */
+    public static synchronized void beginSegment( String name )
+    {
+        if( !sIsActive )
+            return;
+        
+        long now = System.nanoTime();
+        if( sSegment != null )
+            sSegment.mEnd = now;
+        
+        // Only the latest run of a segment counts
+        Iterator<Segment> segments = sSegments.iterator();
+        while( segments.hasNext() )
+        {
+            Segment segment = segments.next();
+            if( segment.mName.equals( name ) )
+            {
+                segment.mIsDiscarded = true;
+                segments.remove();
+            }
+        }
+        Iterator<Span> spans = sSpans.iterator();
+        while( spans.hasNext() )
+        {
+            if( spans.next().mSegment.mIsDiscarded )
+                spans.remove();
+        }
+        
+        sSegment = new Segment( name, now );
+        sSegments.add( sSegment );
+    }
+    
+    /**
+     * Closes a segment. Does nothing if that segment isn't the open one.
+     * 
+     * @param name The name the segment was opened with.
+     */
+    public static synchronized void endSegment( String name )
+    {
+        if( sSegment != null && sSegment.mName.equals( name ) )
+        {
+            sSegment.mEnd = System.nanoTime();
+            sSegment = null;
+        }
+    }
+    
+    /**
+     * Opens a span. Call {@link Span#end()} on the same or any other thread to close it.
+     * 
+     * @param name The name of the span, usually the class and method being timed.
+     * @return The open span.
+     */
+    public static Span begin( String name )
+    {
+        return new Span( name );
+    }
+    
+    /**
+     * Closes the open segment and the trace, and writes the trace out on a background thread. Does
+     * nothing if no trace is open.
+     */
+    public static synchronized void finish()
+    {
+        if( !sIsActive )
+            return;
+        sIsActive = false;
+        
+        long firstFrame = System.nanoTime();
+        if( sSegment != null )
+            sSegment.mEnd = firstFrame;
+        sSegment = null;
+        
+        final List<Segment> segments = new ArrayList<Segment>( sSegments );
+        sSegments.clear();
+        final List<Span> spans = new ArrayList<Span>( sSpans );
+        sSpans.clear();
+        final long origin = sOrigin;
+        final String traceFile = sTraceFile;
+        final String historyFile = sHistoryFile;
+        final String build = sBuild;
+        
+        new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    writeTrace( traceFile, segments, spans, origin, build );
+                }
+                catch( IOException e )
+                {
+                    Log.e( "StartupTrace", "Failed to write " + traceFile, e );
+                }
+                writeHistory( historyFile, segments, spans, build );
+                Log.i( "StartupTrace", "Trace written to " + traceFile );
+            }
+        }, "StartupTraceWriter" ).start();
+    }
+    
+    /**
+     * Summarizes the latest traced launch, comparing it with the latest launch of the previous
+     * build if there is one.
+     * 
+     * @param historyFile The file the segment lengths and span totals are kept in.
+     * @return The summary: the segments in the order they ran, then the spans, slowest first; or
+     *         null if no launch was traced.
+     */
+    public static String getSummary( String historyFile )
+    {
+        ConfigFile history = new ConfigFile( historyFile );
+        ConfigSection latest = history.get( SECTION_LATEST );
+        if( latest == null )
+            return null;
+        ConfigSection previous = history.get( SECTION_PREVIOUS );
+        
+        StringBuilder summary = new StringBuilder();
+        summary.append( "Build " ).append( latest.get( KEY_BUILD ) );
+        if( previous != null )
+            summary.append( " (was " ).append( previous.get( KEY_BUILD ) ).append( ")" );
+        summary.append( "\n\n" );
+        
+        List<String> segments = new ArrayList<String>();
+        String names = latest.get( KEY_SEGMENTS );
+        if( !TextUtils.isEmpty( names ) )
+        {
+            for( String name : names.split( "," ) )
+            {
+                segments.add( name );
+                appendLine( summary, name, latest, previous, name );
+            }
+            summary.append( '\n' );
+        }
+        
+        final Map<String, Integer> totals = new HashMap<String, Integer>();
+        for( String key : latest.keySet() )
+        {
+            boolean isSpan = !key.equals( KEY_BUILD ) && !key.equals( KEY_SEGMENTS )
+                    && !segments.contains( key );
+            if( isSpan )
+                totals.put( key, SafeMethods.toInt( latest.get( key ), 0 ) );
+        }
+        List<String> spans = new ArrayList<String>( totals.keySet() );
+        Collections.sort( spans, new Comparator<String>()
+        {
+            @Override
+            public int compare( String lhs, String rhs )
+            {
+                return totals.get( rhs ).compareTo( totals.get( lhs ) );
+            }
+        } );
+        for( String name : spans )
+            appendLine( summary, name, latest, previous, name );
+        
+        return summary.toString();
+    }
+    
+    private static void appendLine( StringBuilder summary, String label, ConfigSection latest,
+            ConfigSection previous, String key )
+    {
+        summary.append( label ).append( ": " ).append( latest.get( key ) ).append( " ms" );
+        String was = previous == null ? null : previous.get( key );
+        if( was != null )
+            summary.append( " (was " ).append( was ).append( " ms)" );
+        summary.append( '\n' );
+    }
+    
+    // Writes the segments and spans in the Chrome trace event format, as complete ("X") events.
+    // The segments get a row of their own, above the threads.
+    private static void writeTrace( String traceFile, List<Segment> segments, List<Span> spans,
+            long origin, String build ) throws IOException
+    {
+        int pid = android.os.Process.myPid();
+        File file = new File( traceFile );
+        File tmp = new File( traceFile + ".tmp" );
+        Writer writer = new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" );
+        try
+        {
+            writer.write( "{\"traceEvents\":[\n" );
+            
+            // Name the threads, so the viewer doesn't just show their ids
+            Map<Long, String> threads = new LinkedHashMap<Long, String>();
+            threads.put( 0L, "Segments" );
+            for( Span span : spans )
+                threads.put( span.mThreadId, span.mThreadName );
+            String separator = "";
+            for( Map.Entry<Long, String> thread : threads.entrySet() )
+            {
+                writer.write( separator + "{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid
+                        + ",\"tid\":" + thread.getKey() + ",\"args\":{\"name\":"
+                        + quote( thread.getValue() ) + "}}" );
+                separator = ",\n";
+            }
+            
+            for( Segment segment : segments )
+            {
+                writeEvent( writer, separator, segment.mName, "segment", segment.mStart - origin,
+                        segment.mEnd - segment.mStart, pid, 0 );
+            }
+            for( Span span : spans )
+            {
+                writeEvent( writer, separator, span.mName, "startup", span.mStart - origin,
+                        span.mEnd - span.mStart, pid, span.mThreadId );
+            }
+            
+            writer.write( "\n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"build\":"
+                    + quote( build ) + "}}\n" );
+        }
+        finally
+        {
+            writer.close();
+        }
+        
+        // Some filesystems won't rename over an existing file
+        if( !tmp.renameTo( file ) && ( !file.delete() || !tmp.renameTo( file ) ) )
+        {
+            tmp.delete();
+            throw new IOException( "Unable to replace " + traceFile );
+        }
+    }
+    
+    private static void writeEvent( Writer writer, String separator, String name, String category,
+            long start, long duration, int pid, long tid ) throws IOException
+    {
+        writer.write( separator + "{\"name\":" + quote( name ) + ",\"cat\":" + quote( category )
+                + ",\"ph\":\"X\",\"ts\":" + start / 1000 + ",\"dur\":" + duration / 1000
+                + ",\"pid\":" + pid + ",\"tid\":" + tid + "}" );
+    }
+    
+    // Records the segment lengths and span totals as the latest launch, keeping the latest launch
+    // of the last build
+    private static void writeHistory( String historyFile, List<Segment> segments, List<Span> spans,
+            String build )
+    {
+        Map<String, Long> totals = new LinkedHashMap<String, Long>();
+        for( Span span : spans )
+        {
+            Long total = totals.get( span.mName );
+            long duration = ( span.mEnd - span.mStart ) / 1000000;
+            totals.put( span.mName, total == null ? duration : total + duration );
+        }
+        
+        ConfigFile history = new ConfigFile( historyFile );
+        ConfigSection latest = history.get( SECTION_LATEST );
+        ConfigSection previous = history.get( SECTION_PREVIOUS );
+        if( latest != null && !build.equals( latest.get( KEY_BUILD ) ) )
+            previous = latest;
+        
+        // Rebuild the contents from scratch, so spans that no longer exist don't linger; save()
+        // then replaces the file in one step
+        history.clear();
+        history.put( SECTION_LATEST, KEY_BUILD, build );
+        StringBuilder names = new StringBuilder();
+        for( Segment segment : segments )
+        {
+            if( names.length() > 0 )
+                names.append( ',' );
+            names.append( segment.mName );
+            history.put( SECTION_LATEST, segment.mName,
+                    String.valueOf( ( segment.mEnd - segment.mStart ) / 1000000 ) );
+        }
+        history.put( SECTION_LATEST, KEY_SEGMENTS, names.toString() );
+        for( Map.Entry<String, Long> total : totals.entrySet() )
+            history.put( SECTION_LATEST, total.getKey(), String.valueOf( total.getValue() ) );
+        if( previous != null )
+        {
+            for( String key : previous.keySet() )
+                history.put( SECTION_PREVIOUS, key, previous.get( key ) );
+        }
+        history.save();
+    }
+    
+    private static String quote( String value )
+    {
+        return "\"" + value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"";
+    }
+}
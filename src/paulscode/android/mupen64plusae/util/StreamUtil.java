@@ -0,0 +1,211 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * Bulk copying between files and streams.
+ * <p>
+ * File-to-file copies are done by the kernel with {@link FileChannel#transferTo}, so the data never
+ * passes through the Java heap. Copies from streams (assets, zip entries) go through a 64 KB
+ * buffer borrowed from a small pool, so repeated copies (e.g. extracting hundreds of assets) don't
+ * allocate a new buffer each time. Every method closes what it opens, including on failure.
+ */
+public final class StreamUtil
+{
+    /** The size of the pooled copy buffers. */
+    public static final int BUFFER_SIZE = 64 * 1024;
+    
+    // Enough for a few concurrent copies; any more just allocate
+    private static final int MAX_POOLED_BUFFERS = 4;
+    
+    // The largest chunk handed to transferTo at once (some kernels reject huge counts)
+    private static final long MAX_TRANSFER = 8 * 1024 * 1024;
+    
+    private static final ConcurrentLinkedQueue<byte[]> sBufferPool =
+            new ConcurrentLinkedQueue<byte[]>();
+    
+    private StreamUtil()
+    {
+    }
+    
+    /**
+     * Copies a file, replacing the destination if it exists.
+     *
+     * @param src The file to copy.
+     * @param dest The file to create or replace.
+     * @return The number of bytes copied.
+     * @throws IOException If either file can't be opened, or the copy fails.
+     */
+    public static long copy( File src, File dest ) throws IOException
+    {
+        FileInputStream in = new FileInputStream( src );
+        try
+        {
+            FileOutputStream out = new FileOutputStream( dest );
+            try
+            {
+                FileChannel source = in.getChannel();
+                FileChannel target = out.getChannel();
+                long size = source.size();
+                long position = 0;
+                while( position < size )
+                {
+                    long count = source.transferTo( position,
+                            Math.min( size - position, MAX_TRANSFER ), target );
+                    if( count <= 0 )
+                        break; // Shrunk while copying
+                    position += count;
+                }
+                
+                out.close();
+                out = null;
+                return position;
+            }
+            finally
+            {
+                if( out != null )
+                    closeQuietly( out );
+            }
+        }
+        finally
+        {
+            closeQuietly( in );
+        }
+    }
+    
+    /**
+     * Copies a stream into a file, replacing the file if it exists. The stream is closed
+     * afterwards, whether or not the copy succeeds.
+     *
+     * @param in The stream to copy from.
+     * @param dest The file to create or replace.
+     * @return The number of bytes copied.
+     * @throws IOException If the file can't be opened, or the copy fails.
+     */
+    public static long copy( InputStream in, File dest ) throws IOException
+    {
+        try
+        {
+            FileOutputStream out = new FileOutputStream( dest );
+            try
+            {
+                long count = copy( in, out );
+                
+                // Report write errors (e.g. storage full) here rather than losing them on close
+                out.close();
+                out = null;
+                return count;
+            }
+            finally
+            {
+                if( out != null )
+                    closeQuietly( out );
+            }
+        }
+        finally
+        {
+            closeQuietly( in );
+        }
+    }
+    
+    /**
+     * Copies everything from one stream to another. Neither stream is closed.
+     *
+     * @param in The stream to copy from.
+     * @param out The stream to copy to.
+     * @return The number of bytes copied.
+     * @throws IOException If either stream fails.
+     */
+    public static long copy( InputStream in, OutputStream out ) throws IOException
+    {
+        byte[] buffer = acquireBuffer();
+        try
+        {
+            long total = 0;
+            int n;
+            while( ( n = in.read( buffer ) ) >= 0 )
+            {
+                out.write( buffer, 0, n );
+                total += n;
+            }
+            return total;
+        }
+        finally
+        {
+            releaseBuffer( buffer );
+        }
+    }
+    
+    /**
+     * Borrows a copy buffer from the pool. Return it with {@link #releaseBuffer(byte[])} when done.
+     *
+     * @return A buffer of {@link #BUFFER_SIZE} bytes.
+     */
+    public static byte[] acquireBuffer()
+    {
+        byte[] buffer = sBufferPool.poll();
+        return buffer != null ? buffer : new byte[BUFFER_SIZE];
+    }
+    
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer A buffer obtained from {@link #acquireBuffer()}.
+     */
+    public static void releaseBuffer( byte[] buffer )
+    {
+        // The size check is racy, but an extra buffer or two in the pool is harmless
+        if( buffer.length == BUFFER_SIZE && sBufferPool.size() < MAX_POOLED_BUFFERS )
+            sBufferPool.offer( buffer );
+    }
+    
+    /**
+     * Closes a stream or channel, logging rather than throwing any error.
+     *
+     * @param closeable The object to close, may be null.
+     */
+    public static void closeQuietly( Closeable closeable )
+    {
+        if( closeable == null )
+            return;
+        
+        try
+        {
+            closeable.close();
+        }
+        catch( IOException e )
+        {
+            Log.w( "StreamUtil", "Failed to close " + closeable, e );
+        }
+    }
+}
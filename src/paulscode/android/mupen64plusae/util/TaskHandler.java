@@ -22,6 +22,9 @@ package paulscode.android.mupen64plusae.util;
 
 import android.app.AlertDialog;
 import android.app.Activity;
+import android.content.DialogInterface;
+import android.view.View;
+import android.widget.Button;
 
 /**
  * The TaskHandler class is a utility for running processes in the background, rather than from
@@ -56,11 +59,47 @@ public class TaskHandler
      */
     public static Thread run( Activity activity, String title, String message, Task task )
     {
-        final AlertDialog mDialog = new AlertDialog.Builder( activity ).setTitle( title ).setMessage( message ).create();
+        return run( activity, title, message, task, null );
+    }
+    
+    /**
+     * Launches the specified task on a separate thread, and displays a "please wait" modal dialog
+     * with a cancel button until the process has completed. Upon completion, the task's
+     * onComplete() method is called from the specified activity's UI thread.
+     * @param activity Parent activity requesting the task.
+     * @param title Title to give the dialog window and the task thread.
+     * @param message Message to display in the dialog window.
+     * @param task Task to be run.
+     * @param onCancel Called on the UI thread when the cancel button is pressed; it should make the
+     * task finish early. The dialog stays up until the task has finished. If null, the dialog has
+     * no cancel button.
+     * @return Handle to the new thread running the task.
+     */
+    public static Thread run( Activity activity, String title, String message, Task task,
+            final Runnable onCancel )
+    {
+        AlertDialog.Builder builder = new AlertDialog.Builder( activity ).setTitle( title ).setMessage( message );
+        if( onCancel != null )
+            builder.setNegativeButton( android.R.string.cancel, null ).setCancelable( false );
+        final AlertDialog mDialog = builder.create();
         final Activity mActivity = activity;
         final Task mTask = task;
 
         mDialog.show();
+        if( onCancel != null )
+        {
+            // Replace the default handler, which would dismiss the dialog straight away
+            final Button cancelButton = mDialog.getButton( DialogInterface.BUTTON_NEGATIVE );
+            cancelButton.setOnClickListener( new View.OnClickListener()
+            {
+                @Override
+                public void onClick( View v )
+                {
+                    cancelButton.setEnabled( false );
+                    onCancel.run();
+                }
+            } );
+        }
         Thread mThread = new Thread( title )
         {
             @Override
@@ -0,0 +1,368 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import android.util.Log;
+
+/**
+ * Installs a hi-res texture pack from a ZIP file.
+ * <p>
+ * The ZIP file's central directory is read once; that pass both lists the entries and finds the
+ * pack name (the ROM name that prefixes the texture file names, e.g. "SUPER MARIO 64" in
+ * "SUPER MARIO 64#1234ABCD#0#2_all.png"). The entries are then inflated by a small pool of worker
+ * threads into a staging directory next to the destination. Only once every entry has been
+ * inflated is the staging directory renamed into place, replacing any previous version of the
+ * pack; if the import fails or is cancelled, the previous version is left untouched.
+ * <p>
+ * Errors are reported through {@link ErrorLogger}, like the other unzip methods in
+ * {@link Utility}.
+ */
+public class TexturePackImporter
+{
+    private static final String TEXTURE_EXTENSION = ".png";
+    private static final String STAGING_SUFFIX = ".staging";
+    private static final String OLD_SUFFIX = ".old";
+    
+    // Inflating is CPU-bound, but more than a few threads just contend for the ZIP file
+    private static final int MAX_THREADS = 4;
+    
+    private final File mArchive;
+    private final File mTexturesDir;
+    
+    private final AtomicLong mBytesInflated = new AtomicLong( 0 );
+    private final AtomicInteger mFilesInflated = new AtomicInteger( 0 );
+    private final AtomicReference<IOException> mError = new AtomicReference<IOException>();
+    private volatile boolean mIsCancelled = false;
+    private String mPackName = null;
+    private long mElapsedMillis = 0;
+    
+    /**
+     * Constructor.
+     *
+     * @param archivePath The ZIP file containing the texture pack.
+     * @param texturesDir The directory holding all the installed texture packs.
+     */
+    public TexturePackImporter( String archivePath, String texturesDir )
+    {
+        mArchive = new File( archivePath );
+        mTexturesDir = new File( texturesDir );
+    }
+    
+    /**
+     * Imports the texture pack. Blocks until the import is complete, fails, or is cancelled, so
+     * call this from a background thread.
+     *
+     * @return The directory the pack was installed in, or null if unsuccessful or cancelled.
+     */
+    public String importPack()
+    {
+        if( !mArchive.exists() )
+            ErrorLogger.setLastError( "Zip file '" + mArchive.getAbsolutePath()
+                    + "' does not exist" );
+        else if( !mArchive.isFile() )
+            ErrorLogger.setLastError( "Zip file '" + mArchive.getAbsolutePath()
+                    + "' is not a file (method importPack)" );
+        
+        if( ErrorLogger.hasError() )
+        {
+            Log.e( "TexturePackImporter", ErrorLogger.getLastError() );
+            return null;
+        }
+        
+        long startTime = System.nanoTime();
+        ZipFile zipfile = null;
+        File staging = null;
+        try
+        {
+            zipfile = new ZipFile( mArchive );
+            
+            // One pass over the central directory lists the files and finds the pack name
+            List<ZipEntry> entries = new ArrayList<ZipEntry>();
+            Enumeration<? extends ZipEntry> e = zipfile.entries();
+            while( e.hasMoreElements() )
+            {
+                ZipEntry entry = e.nextElement();
+                if( entry == null || entry.isDirectory() )
+                    continue;
+                
+                entries.add( entry );
+                if( mPackName == null )
+                    mPackName = getPackName( entry.getName() );
+            }
+            
+            if( mPackName == null )
+            {
+                ErrorLogger.setLastError( "No compatible textures found in .zip archive" );
+                Log.e( "TexturePackImporter", ErrorLogger.getLastError() );
+                return null;
+            }
+            
+            // Remove anything left behind by an interrupted import
+            File target = new File( mTexturesDir, mPackName );
+            staging = new File( mTexturesDir, mPackName + STAGING_SUFFIX );
+            FileUtil.deleteFolder( staging );
+            
+            // Create the directories up front, so the workers don't race to create them
+            String stagingPath = staging.getCanonicalPath() + File.separator;
+            List<File> outputs = new ArrayList<File>( entries.size() );
+            for( ZipEntry entry : entries )
+            {
+                File output = new File( staging, entry.getName() );
+                if( !output.getCanonicalPath().startsWith( stagingPath ) )
+                    throw new ZipException( "Invalid entry name '" + entry.getName() + "'" );
+                
+                File parent = output.getParentFile();
+                if( !parent.isDirectory() && !parent.mkdirs() )
+                    throw new IOException( "Unable to create " + parent.getPath() );
+                outputs.add( output );
+            }
+            
+            inflate( zipfile, entries, outputs );
+            if( mIsCancelled )
+            {
+                Log.i( "TexturePackImporter", "Import of " + mPackName + " cancelled" );
+                return null;
+            }
+            else if( mError.get() != null )
+            {
+                throw mError.get();
+            }
+            else if( mFilesInflated.get() != entries.size() )
+            {
+                // Never install an incomplete pack, whatever went wrong
+                throw new IOException( "Only " + mFilesInflated.get() + " of " + entries.size()
+                        + " files inflated" );
+            }
+            
+            install( staging, target );
+            
+            mElapsedMillis = ( System.nanoTime() - startTime ) / 1000000;
+            Log.i( "TexturePackImporter", String.format( Locale.US,
+                    "Imported %s: %d files, %d bytes in %d ms (%.1f MB/s)", mPackName,
+                    mFilesInflated.get(), mBytesInflated.get(), mElapsedMillis, getThroughput() ) );
+            return target.getAbsolutePath();
+        }
+        catch( ZipException ze )
+        {
+            ErrorLogger
+                    .setLastError( "Zip Error!  Ensure file is a valid .zip archive and is not corrupt" );
+            Log.e( "TexturePackImporter", "ZipException in method importPack", ze );
+            return null;
+        }
+        catch( IOException ioe )
+        {
+            ErrorLogger
+                    .setLastError( "IO Error!  Please report, so problem can be fixed in future update" );
+            Log.e( "TexturePackImporter", "IOException in method importPack", ioe );
+            return null;
+        }
+        finally
+        {
+            if( zipfile != null )
+            {
+                try
+                {
+                    zipfile.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            
+            // Only still there if the import didn't complete
+            if( staging != null && staging.exists() )
+                FileUtil.deleteFolder( staging );
+        }
+    }
+    
+    /**
+     * Stops the import as soon as possible. May be called from any thread.
+     */
+    public void cancel()
+    {
+        mIsCancelled = true;
+    }
+    
+    /**
+     * Checks whether the import was cancelled.
+     *
+     * @return True if {@link #cancel()} has been called.
+     */
+    public boolean isCancelled()
+    {
+        return mIsCancelled;
+    }
+    
+    /**
+     * Returns the name of the texture pack, once the import has found it.
+     *
+     * @return The pack name, or null if it isn't known (yet).
+     */
+    public String getPackName()
+    {
+        return mPackName;
+    }
+    
+    /**
+     * Returns the number of bytes inflated so far. May be called from any thread while the import
+     * is running.
+     *
+     * @return The total size of the files inflated so far.
+     */
+    public long getBytesInflated()
+    {
+        return mBytesInflated.get();
+    }
+    
+    /**
+     * Returns the inflation throughput of a completed import.
+     *
+     * @return The throughput in MB/s, or 0 if the import hasn't completed.
+     */
+    public double getThroughput()
+    {
+        if( mElapsedMillis <= 0 )
+            return 0;
+        return mBytesInflated.get() / ( 1024.0 * 1024.0 ) / ( mElapsedMillis / 1000.0 );
+    }
+    
+    // Inflates the entries into the output files on a pool of worker threads
+    private void inflate( final ZipFile zipfile, List<ZipEntry> entries, List<File> outputs )
+    {
+        int threads = Math.min( MAX_THREADS, Runtime.getRuntime().availableProcessors() );
+        ExecutorService executor = Executors.newFixedThreadPool( Math.max( 1, threads ),
+                new ThreadFactory()
+                {
+                    private final AtomicInteger mCount = new AtomicInteger( 0 );
+                    
+                    @Override
+                    public Thread newThread( Runnable r )
+                    {
+                        return new Thread( r, "TexturePackImporter" + mCount.incrementAndGet() );
+                    }
+                } );
+        
+        for( int i = 0; i < entries.size(); i++ )
+        {
+            final ZipEntry entry = entries.get( i );
+            final File output = outputs.get( i );
+            executor.execute( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    // Skip the rest once anything has gone wrong
+                    if( mIsCancelled || mError.get() != null )
+                        return;
+                    
+                    try
+                    {
+                        mBytesInflated.addAndGet( StreamUtil.copy(
+                                zipfile.getInputStream( entry ), output ) );
+                        mFilesInflated.incrementAndGet();
+                    }
+                    catch( IOException e )
+                    {
+                        mError.compareAndSet( null, e );
+                    }
+                    catch( RuntimeException e )
+                    {
+                        // Would otherwise be swallowed by the executor, leaving a partial pack
+                        IOException error = new IOException( "Unable to inflate "
+                                + entry.getName() + ": " + e );
+                        error.initCause( e );
+                        mError.compareAndSet( null, error );
+                    }
+                }
+            } );
+        }
+        
+        // Wait for the workers to finish
+        executor.shutdown();
+        try
+        {
+            while( !executor.awaitTermination( 1, TimeUnit.SECONDS ) )
+            {
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Log.w( "TexturePackImporter", "Interrupted while waiting for workers" );
+            mIsCancelled = true;
+            executor.shutdownNow();
+        }
+    }
+    
+    // Replaces the installed pack (if any) with the staged one
+    private static void install( File staging, File target ) throws IOException
+    {
+        File old = new File( target.getPath() + OLD_SUFFIX );
+        FileUtil.deleteFolder( old );
+        
+        // Each rename is atomic, so the pack directory is always either the old or the new pack
+        if( target.exists() && !target.renameTo( old ) )
+            throw new IOException( "Unable to move " + target.getPath() + " aside" );
+        if( !staging.renameTo( target ) )
+        {
+            old.renameTo( target );
+            throw new IOException( "Unable to rename " + staging.getPath() );
+        }
+        
+        FileUtil.deleteFolder( old );
+    }
+    
+    /**
+     * Derives the texture pack name from the name of a file in the pack.
+     *
+     * @param entryName The path of the file within the ZIP file.
+     * @return The pack name, or null if the file isn't a texture.
+     */
+    static String getPackName( String entryName )
+    {
+        if( !entryName.toLowerCase( Locale.US ).endsWith( TEXTURE_EXTENSION ) )
+            return null;
+        
+        // The name is the part of the file name before the first '#'
+        int end = entryName.indexOf( '#' );
+        if( end <= 0 )
+            return null;
+        
+        String name = entryName.substring( entryName.lastIndexOf( '/', end - 1 ) + 1, end );
+        return name.length() > 0 ? name : null;
+    }
+}
@@ -20,13 +20,14 @@
  */
 package paulscode.android.mupen64plusae.util;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.Locale;
@@ -34,7 +35,7 @@ import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
-import paulscode.android.mupen64plusae.CoreInterfaceNative;
+import paulscode.android.mupen64plusae.persistent.RomMetadataCache;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Point;
@@ -147,137 +148,54 @@ public class Utility
         context.startActivity( intent );
     }
     
-    public static String getHeaderName( String filename, String tempDir )
+    /**
+     * Gets the internal name from the N64 ROM's header.
+     *
+     * @param filename The filename of the ROM (.z64, .v64, .n64 or .zip).
+     *
+     * @return The name of the ROM, or null if the header couldn't be read.
+     */
+    public static String getHeaderName( String filename )
     {
-        ErrorLogger.put( "READ_HEADER", "fail", "" );
-        if( filename == null || filename.length() < 1 )
-        {
-            ErrorLogger.put( "READ_HEADER", "fail", "filename not specified" );
-            Log.e( "Utility", "filename not specified in method 'getHeaderName'" );
-            return null;
-        }
-        else if( filename.toLowerCase( Locale.US ).endsWith( ".zip" ) )
-        {
-            // Create the tmp folder if it doesn't exist:
-            File tmpFolder = new File( tempDir );
-            tmpFolder.mkdir();
-            
-            // Clear the folder if anything is in there:
-            String[] children = tmpFolder.list();
-            if( children != null )
-            {
-                for( String child : children )
-                {
-                    FileUtil.deleteFolder( new File( tmpFolder, child ) );
-                }
-            }
-            
-            ErrorLogger.clearLastError();
-            String uzFile = unzipFirstROM( new File( filename ), tempDir );
-            if( uzFile == null || uzFile.length() < 1 )
-            {
-                Log.e( "Utility", "Unable to unzip ROM: '" + filename + "'" );
-                if( ErrorLogger.hasError() )
-                {
-                    ErrorLogger.putLastError( "READ_HEADER", "fail" );
-                    ErrorLogger.clearLastError();
-                }
-                else
-                {
-                    ErrorLogger.put( "READ_HEADER", "fail", "Unable to unzip ROM: '" + filename
-                            + "'" );
-                }
-                return null;
-            }
-            else
-            {
-                String headerName = CoreInterfaceNative.getHeaderName( uzFile );
-                try
-                {
-                    new File( uzFile ).delete();
-                }
-                catch( NullPointerException ignored )
-                {
-                }
-                return headerName;
-            }
-        }
-        else
-        {
-            return CoreInterfaceNative.getHeaderName( filename );
-        }
+        RomHeader header = readHeader( filename, "getHeaderName" );
+        return header == null ? null : header.name;
     }
 
     /**
-     * Gets the two CRC values from the N64 ROM's header.
+     * Gets the two CRC values from the N64 ROM's header. Only the header is read, even for zipped
+     * ROMs, so this is fast enough to call on demand.
      *
-     * @param filename The filename of the rom
-     * @param tempDir Temporary directory the ROM will be extracted in so that the header can be checked.
+     * @param filename The filename of the ROM (.z64, .v64, .n64 or .zip).
      *
-     * @return The CRC values of the ROM as a string. <p>
-     *         If the extracted ROM is null, then null will be returned.
+     * @return The CRC values of the ROM as a string, e.g. "635A2BFF 8B022326". <p>
+     *         If the header couldn't be read, then null will be returned.
      */
-    public static String getHeaderCRC( String filename, String tempDir )
+    public static String getHeaderCRC( String filename )
+    {
+        RomHeader header = readHeader( filename, "getHeaderCRC" );
+        return header == null ? null : header.getCrc();
+    }
+
+    private static RomHeader readHeader( String filename, String method )
     {
         ErrorLogger.put( "READ_HEADER", "fail", "" );
         if( TextUtils.isEmpty( filename ) )
         {
             ErrorLogger.put( "READ_HEADER", "fail", "filename not specified" );
-            Log.e( "Utility", "filename not specified in method 'getHeaderCRC'" );
+            Log.e( "Utility", "filename not specified in method '" + method + "'" );
             return null;
         }
-        else if( filename.toLowerCase( Locale.US ).endsWith( ".zip" ) )
-        {
-            // Create the tmp folder if it doesn't exist:
-            File tmpFolder = new File( tempDir );
-            while( tmpFolder.exists() && !tmpFolder.isDirectory() )
-            {
-                // A file with this name already exists, choose another name
-                tempDir += "_";
-                tmpFolder = new File( tempDir );
-            }
-            tmpFolder.mkdir();
-            
-            // Clear the folder if anything is in there:
-            String[] children = tmpFolder.list();
-            if( children != null)
-            {
-                for( String child : children )
-                {
-                    FileUtil.deleteFolder( new File( tmpFolder, child ) );
-                }
-            }
-            
-            ErrorLogger.clearLastError();
-            String uzFile = unzipFirstROM( new File( filename ), tempDir );
-            if( TextUtils.isEmpty( uzFile ) )
-            {
-                Log.e( "Utility", "Unable to unzip ROM: '" + filename + "'" );
-                if( ErrorLogger.hasError() )
-                {
-                    ErrorLogger.putLastError( "READ_HEADER", "fail" );
-                    ErrorLogger.clearLastError();
-                }
-                else
-                {
-                    ErrorLogger.put( "READ_HEADER", "fail", "Unable to unzip ROM: '" + filename
-                            + "'" );
-                }
-
-                return null;
-            }
-            else
-            {
-                String headerCRC = checkCRC( CoreInterfaceNative.getHeaderCRC( uzFile ) );
-
-                new File( uzFile ).delete();
 
-                return headerCRC;
-            }
+        try
+        {
+            return RomHeader.read( filename );
         }
-        else
+        catch( IOException e )
         {
-            return checkCRC( CoreInterfaceNative.getHeaderCRC( filename ) );
+            Log.e( "Utility", "Unable to read ROM header: '" + filename + "'", e );
+            ErrorLogger.put( "READ_HEADER", "fail", "Unable to read ROM header: '" + filename
+                    + "' (" + e.getMessage() + ")" );
+            return null;
         }
     }
 
@@ -312,136 +230,87 @@ public class Utility
                 + CRC_2.substring( CRC_2.length() - 8, CRC_2.length() );
     }
     
-    public static String getTexturePackName( String filename )
+    /**
+     * Finds the first N64 ROM (.z64, .v64 or .n64) in a ZIP file.
+     *
+     * @param zipfile The archive to search.
+     *
+     * @return The entry of the first ROM, or null if there are none.
+     */
+    public static ZipEntry findFirstROM( ZipFile zipfile )
     {
-        int x;
-        String textureName, textureExt;
-        String supportedExt = ".png";
-        File archive = new File( filename );
-        
-        if( !archive.exists() )
-            ErrorLogger
-                    .setLastError( "Zip file '" + archive.getAbsolutePath() + "' does not exist" );
-        else if( !archive.isFile() )
-            ErrorLogger.setLastError( "Zip file '" + archive.getAbsolutePath()
-                    + "' is not a file (method unzipFirstROM)" );
-        
-        if( ErrorLogger.hasError() )
-        {
-            Log.e( "Utility", ErrorLogger.getLastError() );
-            return null;
-        }
-        try
+        String supportedExt = ".z64.v64.n64";
+        Enumeration<? extends ZipEntry> e = zipfile.entries();
+        while( e.hasMoreElements() )
         {
-            ZipFile zipfile = new ZipFile( archive );
-            Enumeration<? extends ZipEntry> e = zipfile.entries();
-            while( e.hasMoreElements() )
+            ZipEntry entry = e.nextElement();
+            if( entry != null && !entry.isDirectory() )
             {
-                ZipEntry entry = e.nextElement();
-                if( entry != null && !entry.isDirectory() )
+                String romName = entry.getName();
+                if( romName != null && romName.length() > 3 )
                 {
-                    textureName = entry.getName();
-                    if( textureName != null && textureName.length() > 3 )
-                    {
-                        textureExt = textureName.substring( textureName.length() - 4,
-                                textureName.length() ).toLowerCase( Locale.US );
-                        if( supportedExt.contains( textureExt ) )
-                        {
-                            x = textureName.indexOf( '#' );
-                            if( x > 0 && x < textureName.length() )
-                            {
-                                textureName = textureName.substring( 0, x );
-                                if( textureName.length() > 0 )
-                                {
-                                    x = textureName.lastIndexOf( '/' );
-                                    if( x >= 0 && x < textureName.length() )
-                                        return textureName.substring( x + 1, textureName.length() );
-                                }
-                            }
-                        }
-                    }
+                    String romExt = romName.substring( romName.length() - 4, romName.length() )
+                            .toLowerCase( Locale.US );
+                    if( supportedExt.contains( romExt ) )
+                        return entry;
                 }
             }
         }
-        catch( ZipException ze )
-        {
-            ErrorLogger
-                    .setLastError( "Zip Error!  Ensure file is a valid .zip archive and is not corrupt" );
-            Log.e( "Utility", "ZipException in method getTexturePackName", ze );
-            return null;
-        }
-        catch( IOException ioe )
-        {
-            ErrorLogger
-                    .setLastError( "IO Error!  Please report, so problem can be fixed in future update" );
-            Log.e( "Utility", "IOException in method getTexturePackName", ioe );
-            return null;
-        }
-        catch( Exception e )
-        {
-            ErrorLogger
-                    .setLastError( "Error! Please report, so problem can be fixed in future update" );
-            Log.e( "Utility", "Unzip error", e );
-            return null;
-        }
-        ErrorLogger.setLastError( "No compatible textures found in .zip archive" );
-        Log.e( "Utility", ErrorLogger.getLastError() );
         return null;
     }
     
-    public static String unzipFirstROM( File archive, String outputDir )
+    /**
+     * Inflates the first ROM in a ZIP file straight into native memory in big-endian order,
+     * without writing it to disk.
+     *
+     * @param archive  The archive containing the ROM.
+     * @param metadata The cache to store the ROM's checksums in, or null.
+     *
+     * @return A direct buffer holding the whole ROM image, or null if unsuccessful.
+     */
+    public static ByteBuffer unzipFirstROMToBuffer( File archive, RomMetadataCache metadata )
     {
-        String romName, romExt;
-        String supportedExt = ".z64.v64.n64";
-        
         if( archive == null )
-            ErrorLogger.setLastError( "Zip file null in method unzipFirstROM" );
+            ErrorLogger.setLastError( "Zip file null in method unzipFirstROMToBuffer" );
         else if( !archive.exists() )
             ErrorLogger
                     .setLastError( "Zip file '" + archive.getAbsolutePath() + "' does not exist" );
         else if( !archive.isFile() )
             ErrorLogger.setLastError( "Zip file '" + archive.getAbsolutePath()
-                    + "' is not a file (method unzipFirstROM)" );
+                    + "' is not a file (method unzipFirstROMToBuffer)" );
         
         if( ErrorLogger.hasError() )
         {
             Log.e( "Utility", ErrorLogger.getLastError() );
             return null;
         }
-
+        
+        ZipFile zipfile = null;
         try
         {
-            ZipFile zipfile = new ZipFile( archive );
-            Enumeration<? extends ZipEntry> e = zipfile.entries();
-            
-            while( e.hasMoreElements() )
-            {
-                ZipEntry entry = e.nextElement();
-                if( entry != null && !entry.isDirectory() )
-                {
-                    romName = entry.getName();
-                    if( romName != null && romName.length() > 3 )
-                    {
-                        romExt = romName.substring( romName.length() - 4, romName.length() )
-                                .toLowerCase( Locale.US );
-                        if( supportedExt.contains( romExt ) )
-                            return unzipEntry( zipfile, entry, outputDir );
-                    }
-                }
-            }
+            zipfile = new ZipFile( archive );
+            ZipEntry entry = findFirstROM( zipfile );
+            if( entry != null )
+                return unzipEntryToBuffer( zipfile, entry, metadata );
         }
         catch( ZipException ze )
         {
             ErrorLogger
                     .setLastError( "Zip Error!  Ensure file is a valid .zip archive and is not corrupt" );
-            Log.e( "Utility", "ZipException in method unzipFirstROM", ze );
+            Log.e( "Utility", "ZipException in method unzipFirstROMToBuffer", ze );
             return null;
         }
         catch( IOException ioe )
         {
             ErrorLogger
                     .setLastError( "IO Error!  Please report, so problem can be fixed in future update" );
-            Log.e( "Utility", "IOException in method unzipFirstROM", ioe );
+            Log.e( "Utility", "IOException in method unzipFirstROMToBuffer", ioe );
+            return null;
+        }
+        catch( OutOfMemoryError oome )
+        {
+            ErrorLogger.setLastError( "Not enough memory to unzip ROM" );
+            Log.e( "Utility", "OutOfMemoryError in method unzipFirstROMToBuffer", oome );
             return null;
         }
         catch( Exception e )
@@ -451,114 +320,141 @@ public class Utility
             Log.e( "Utility", "Unzip error", e );
             return null;
         }
-
+        finally
+        {
+            if( zipfile != null )
+            {
+                try
+                {
+                    zipfile.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+        
         ErrorLogger.setLastError( "No compatible ROMs found in .zip archive" );
         Log.e( "Utility", ErrorLogger.getLastError() );
-
+        
         return null;
     }
-
+    
     /**
-     * Unzips a ZIP file in its entirety.
+     * Maps an uncompressed, big-endian ROM file into memory read-only. The core copies the image
+     * straight out of the page cache, so no buffer of our own ever holds the whole ROM.
      *
-     * @param archive   The archive to extract.
-     * @param outputDir Directory to place all of the extracted files.
+     * @param rom The ROM file.
      *
-     * @return True if extraction was successful, false otherwise.
+     * @return A direct buffer backed by the file, or null if the file couldn't be mapped.
      */
-    public static boolean unzipAll( File archive, String outputDir )
+    public static ByteBuffer mapROM( File rom )
     {
-        if( archive == null )
-            ErrorLogger.setLastError( "Zip file null in method unzipAll" );
-        else if( !archive.exists() )
-            ErrorLogger
-                    .setLastError( "Zip file '" + archive.getAbsolutePath() + "' does not exist" );
-        else if( !archive.isFile() )
-            ErrorLogger.setLastError( "Zip file '" + archive.getAbsolutePath()
-                    + "' is not a file (method unzipFirstROM)" );
-        
-        if( ErrorLogger.hasError() )
+        FileInputStream inputStream = null;
+        try
         {
-            Log.e( "Utility", ErrorLogger.getLastError() );
-            return false;
+            // The mapping stays valid after the file is closed
+            inputStream = new FileInputStream( rom );
+            return inputStream.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, rom.length() );
         }
-
+        catch( IOException ioe )
+        {
+            Log.w( "Utility", "IOException in method mapROM", ioe );
+            return null;
+        }
+        finally
+        {
+            StreamUtil.closeQuietly( inputStream );
+        }
+    }
+    
+    /**
+     * Computes the checksums of an uncompressed ROM file and stores them in the metadata cache.
+     * The image is normalized to big-endian order first, so the MD5 matches the ROM catalog
+     * whatever the byte order of the file. This reads the whole ROM, so keep it off the UI thread.
+     *
+     * @param rom      The ROM file, in any byte order.
+     * @param metadata The cache to store the ROM's checksums in.
+     *
+     * @return True if the checksums were stored.
+     */
+    public static boolean digestROM( File rom, RomMetadataCache metadata )
+    {
+        RomDigestInputStream digestStream = null;
+        byte[] b = StreamUtil.acquireBuffer();
         try
         {
-            File f;
-            ZipFile zipfile = new ZipFile( archive );
-            Enumeration<? extends ZipEntry> e = zipfile.entries();
-
-            while( e.hasMoreElements() )
+            digestStream = new RomDigestInputStream( RomNormalizer.wrap( new FileInputStream(
+                    rom ) ) );
+            while( digestStream.read( b ) >= 0 )
             {
-                ZipEntry entry = e.nextElement();
-                if( entry != null && !entry.isDirectory() )
-                {
-                    f = new File( outputDir + "/" + entry.toString() );
-                    f = f.getParentFile();
-                    if( f != null )
-                    {
-                        f.mkdirs();
-                        unzipEntry( zipfile, entry, outputDir );
-                    }
-                }
             }
-        }
-        catch( ZipException ze )
-        {
-            ErrorLogger
-                    .setLastError( "Zip Error!  Ensure file is a valid .zip archive and is not corrupt" );
-            Log.e( "Utility", "ZipException in method unzipAll", ze );
-            return false;
+            digestStream.storeIn( metadata, rom.getPath() );
+            return true;
         }
         catch( IOException ioe )
         {
-            ErrorLogger
-                    .setLastError( "IO Error!  Please report, so problem can be fixed in future update" );
-            Log.e( "Utility", "IOException in method unzipAll", ioe );
+            Log.w( "Utility", "IOException in method digestROM", ioe );
             return false;
         }
-        catch( Exception e )
+        finally
         {
-            ErrorLogger
-                    .setLastError( "Error! Please report, so problem can be fixed in future update" );
-            Log.e( "Utility", "Unzip error", e );
-            return false;
+            StreamUtil.releaseBuffer( b );
+            StreamUtil.closeQuietly( digestStream );
         }
-
-        return true;
     }
-
-    // Unzips a specific entry from a ZIP file.
-    private static String unzipEntry( ZipFile zipfile, ZipEntry entry, String outputDir )
+    
+    // Inflates a specific entry from a ZIP file into a direct buffer.
+    private static ByteBuffer unzipEntryToBuffer( ZipFile zipfile, ZipEntry entry,
+            RomMetadataCache metadata ) throws IOException
+    {
+        RomDigestInputStream inputStream = new RomDigestInputStream(
+                RomNormalizer.wrap( zipfile.getInputStream( entry ) ) );
+        ByteBuffer buffer = readROMToBuffer( inputStream, entry.getSize(), entry.getName() );
+        if( buffer != null )
+            inputStream.storeIn( metadata, zipfile.getName() );
+        return buffer;
+    }
+    
+    // Reads a whole ROM image from a stream into a direct buffer, closing the stream.
+    private static ByteBuffer readROMToBuffer( InputStream inputStream, long size, String name )
             throws IOException
     {
-        if( entry.isDirectory() )
+        ByteBuffer buffer;
+        byte[] b = StreamUtil.acquireBuffer();
+        try
         {
-            ErrorLogger.setLastError( "Error! .zip entry '" + entry.getName()
-                    + "' is a directory, not a file" );
-            Log.e( "Utility", ErrorLogger.getLastError() );
-            return null;
+            if( size < 0 || size > Integer.MAX_VALUE )
+            {
+                ErrorLogger.setLastError( "Error! ROM '" + name + "' has an invalid size" );
+                Log.e( "Utility", ErrorLogger.getLastError() );
+                return null;
+            }
+            
+            // The native code reads the ROM straight from this buffer, so it must be direct
+            buffer = ByteBuffer.allocateDirect( (int) size );
+            int n;
+            while( buffer.hasRemaining()
+                    && ( n = inputStream.read( b, 0, Math.min( b.length, buffer.remaining() ) ) ) >= 0 )
+            {
+                buffer.put( b, 0, n );
+            }
         }
-        
-        File outputFile = new File( outputDir, entry.getName() );
-        String newFile = outputFile.getAbsolutePath();
-        
-        BufferedInputStream inputStream = new BufferedInputStream( zipfile.getInputStream( entry ) );
-        BufferedOutputStream outputStream = new BufferedOutputStream( new FileOutputStream(
-                outputFile ) );
-        byte[] b = new byte[1024];
-        int n;
-        
-        while( ( n = inputStream.read( b, 0, 1024 ) ) >= 0 )
+        finally
         {
-            outputStream.write( b, 0, n );
+            StreamUtil.releaseBuffer( b );
+            inputStream.close();
         }
         
-        outputStream.close();
-        inputStream.close();
+        if( buffer.hasRemaining() )
+        {
+            ErrorLogger.setLastError( "Error! ROM '" + name + "' is truncated" );
+            Log.e( "Utility", ErrorLogger.getLastError() );
+            return null;
+        }
         
-        return newFile;
+        buffer.flip();
+        return buffer;
     }
 
     /**
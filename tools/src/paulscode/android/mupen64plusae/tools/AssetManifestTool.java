@@ -0,0 +1,49 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: Paul Lamb
+ */
+package paulscode.android.mupen64plusae.tools;
+
+import java.io.File;
+import java.io.IOException;
+
+import paulscode.android.mupen64plusae.util.AssetManifest;
+
+/**
+ * Generates the manifest of the bundled assets. Run by the "-pre-build" target in
+ * custom_rules.xml, so the manifest is always current in a release build; run it by hand after
+ * changing the assets when building from Eclipse.
+ * <p>
+ * Usage: AssetManifestTool &lt;asset directory&gt; &lt;manifest file&gt;
+ */
+public class AssetManifestTool
+{
+    public static void main( String[] args ) throws IOException
+    {
+        if( args.length != 2 )
+        {
+            System.err.println( "Usage: AssetManifestTool <asset directory> <manifest file>" );
+            System.exit( 1 );
+        }
+        
+        AssetManifest manifest = AssetManifest.scan( new File( args[0] ) );
+        manifest.write( new File( args[1] ) );
+        System.out.println( "Wrote " + manifest.size() + " entries to " + args[1] );
+    }
+}